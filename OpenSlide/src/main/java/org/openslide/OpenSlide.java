@@ -86,14 +86,27 @@ public final class OpenSlide implements Closeable {
 
     final private int levelCount;
 
-    final private Map<String, String> properties;
+    // properties and associated images are loaded lazily: slides can have hundreds of vendor properties,
+    // and every property costs a JNI call
+    private volatile Map<String, String> properties = null;
 
-    final private Map<String, AssociatedImage> associatedImages;
+    private volatile Map<String, AssociatedImage> associatedImages = null;
+
+    final private String quickhash1;
 
     final private File canonicalFile;
 
     final private int hashCodeVal;
 
+    // opening time breakdown, in nanoseconds
+    final private long openTime;
+
+    final private long levelsTime;
+
+    final private long quickhashTime;
+
+    private volatile long propertiesTime = -1;
+
     public static String detectVendor(File file) {
         return OpenSlideJNI.openslide_detect_vendor(file.getPath());
     }
@@ -103,7 +116,9 @@ public final class OpenSlide implements Closeable {
             throw new FileNotFoundException(file.toString());
         }
 
+        long t1 = System.nanoTime();
         osr = OpenSlideJNI.openslide_open(file.getPath());
+        long t2 = System.nanoTime();
 
         if (osr == 0) {
             throw new IOException(file
@@ -133,28 +148,16 @@ public final class OpenSlide implements Closeable {
             levelDownsamples[i] = OpenSlideJNI.openslide_get_level_downsample(
                     osr, i);
         }
-
-        // properties
-        HashMap<String, String> props = new HashMap<String, String>();
-        for (String s : OpenSlideJNI.openslide_get_property_names(osr)) {
-            props.put(s, OpenSlideJNI.openslide_get_property_value(osr, s));
-        }
-
-        properties = Collections.unmodifiableMap(props);
-
-        // associated images
-        HashMap<String, AssociatedImage> associated =
-                new HashMap<String, AssociatedImage>();
-        for (String s : OpenSlideJNI
-                .openslide_get_associated_image_names(osr)) {
-            associated.put(s, new AssociatedImage(s, this));
-        }
-
-        associatedImages = Collections.unmodifiableMap(associated);
+        long t3 = System.nanoTime();
 
         // store info for hash and equals
         canonicalFile = file.getCanonicalFile();
-        String quickhash1 = getProperties().get(PROPERTY_NAME_QUICKHASH1);
+        quickhash1 = OpenSlideJNI.openslide_get_property_value(osr,
+                PROPERTY_NAME_QUICKHASH1);
+        long t4 = System.nanoTime();
+        openTime = t2 - t1;
+        levelsTime = t3 - t2;
+        quickhashTime = t4 - t3;
         if (quickhash1 != null) {
             hashCodeVal = (int) Long.parseLong(quickhash1.substring(0, 8), 16);
         } else {
@@ -180,6 +183,7 @@ public final class OpenSlide implements Closeable {
     }
 
     // takes the writer lock
+    // getProperties() and getAssociatedImages() work after disposing only if they were called before
     public void dispose() {
         Lock wl = lock.writeLock();
         wl.lock();
@@ -347,15 +351,16 @@ public final class OpenSlide implements Closeable {
         return result;
     }
 
+    // area-averaged, read in parallel from the coarsest adequate level
     public BufferedImage createThumbnailImage(int x, int y, long w, long h,
             int maxSize) throws IOException {
-        return createThumbnailImage(x, y, w, h, maxSize,
-                BufferedImage.TYPE_INT_RGB);
+        return OpenSlideThumbnails.createThumbnailImage(this, x, y, w, h,
+                maxSize);
     }
 
+    // may use the embedded thumbnail; cached on disk by quickhash-1
     public BufferedImage createThumbnailImage(int maxSize) throws IOException {
-        return createThumbnailImage(0, 0, getLevel0Width(), getLevel0Height(),
-                maxSize);
+        return OpenSlideThumbnails.createThumbnailImage(this, maxSize);
     }
 
     public double getLevelDownsample(int level) {
@@ -379,12 +384,90 @@ public final class OpenSlide implements Closeable {
         return levelCount - 1;
     }
 
+    // takes the reader lock, if the properties are not loaded yet.
+    // Note: before lazy loading, properties were available after dispose(); now they are available
+    // only if they were loaded before dispose(), else OpenSlideDisposedException is thrown.
+    // Call getProperties() before dispose(), if the properties are necessary after it.
     public Map<String, String> getProperties() {
-        return properties;
+        Map<String, String> result = properties;
+        if (result != null) {
+            return result;
+        }
+        Lock rl = lock.readLock();
+        rl.lock();
+        try {
+            checkDisposed();
+            long t1 = System.nanoTime();
+            HashMap<String, String> props = new HashMap<String, String>();
+            for (String s : OpenSlideJNI.openslide_get_property_names(osr)) {
+                props.put(s, OpenSlideJNI.openslide_get_property_value(osr, s));
+            }
+            result = Collections.unmodifiableMap(props);
+            properties = result;
+            propertiesTime = System.nanoTime() - t1;
+            return result;
+        } finally {
+            rl.unlock();
+        }
     }
 
+    // takes the reader lock, if the properties are not loaded yet;
+    // unlike getProperties(), costs only one JNI call
+    public String getProperty(String name) {
+        if (name == null) {
+            throw new NullPointerException("Null property name");
+        }
+        Map<String, String> props = properties;
+        if (props != null) {
+            return props.get(name);
+        }
+        Lock rl = lock.readLock();
+        rl.lock();
+        try {
+            checkDisposed();
+            return OpenSlideJNI.openslide_get_property_value(osr, name);
+        } finally {
+            rl.unlock();
+        }
+    }
+
+    // takes the reader lock, if the list of associated images is not loaded yet.
+    // Like getProperties(), throws OpenSlideDisposedException after dispose(),
+    // if the list was not loaded before it (reading the images themselves always requires the slide to be open)
     public Map<String, AssociatedImage> getAssociatedImages() {
-        return associatedImages;
+        Map<String, AssociatedImage> result = associatedImages;
+        if (result != null) {
+            return result;
+        }
+        Lock rl = lock.readLock();
+        rl.lock();
+        try {
+            checkDisposed();
+            HashMap<String, AssociatedImage> associated =
+                    new HashMap<String, AssociatedImage>();
+            for (String s : OpenSlideJNI
+                    .openslide_get_associated_image_names(osr)) {
+                associated.put(s, new AssociatedImage(s, this));
+            }
+            result = Collections.unmodifiableMap(associated);
+            associatedImages = result;
+            return result;
+        } finally {
+            rl.unlock();
+        }
+    }
+
+    // human-readable breakdown of the time spent in the constructor
+    // (and in loading all properties, if it has been done)
+    public String getOpeningTimeInfo() {
+        long propertiesTime = this.propertiesTime;
+        return String.format(Locale.US,
+                "opening %.3f ms, %d levels %.3f ms, quickhash %.3f ms, "
+                        + "properties %s",
+                openTime * 1e-6, levelCount, levelsTime * 1e-6,
+                quickhashTime * 1e-6,
+                propertiesTime < 0 ? "not loaded" : String.format(Locale.US,
+                        "%.3f ms", propertiesTime * 1e-6));
     }
 
     // takes the reader lock
@@ -438,10 +521,7 @@ public final class OpenSlide implements Closeable {
 
         if (obj instanceof OpenSlide) {
             OpenSlide os2 = (OpenSlide) obj;
-            String quickhash1 = getProperties()
-                    .get(PROPERTY_NAME_QUICKHASH1);
-            String os2_quickhash1 = os2.getProperties()
-                    .get(PROPERTY_NAME_QUICKHASH1);
+            String os2_quickhash1 = os2.quickhash1;
 
             if (quickhash1 != null && os2_quickhash1 != null) {
                 return quickhash1.equals(os2_quickhash1);
@@ -0,0 +1,351 @@
+/*
+ *  OpenSlide, a library for reading whole slide image files
+ *
+ *  Copyright (c) 2007-2010 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation, version 2.1.
+ *
+ *  OpenSlide is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with OpenSlide. If not, see
+ *  <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.openslide;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Thumbnail engine behind OpenSlide.createThumbnailImage.
+ *
+ * Uses the "thumbnail" associated image, if it is large enough; otherwise
+ * reads the coarsest adequate level in parallel tiles and downsamples them
+ * by area averaging in one pass. If the system property
+ * "org.openslide.thumbnailCacheDir" is set and non-empty, thumbnails of whole
+ * slides are stored as PNG files in that directory, keyed by quickhash-1 and
+ * size; the cache is not cleaned, so its size is controlled by the caller.
+ * By default, nothing is stored.
+ */
+final class OpenSlideThumbnails {
+    private static final String THUMBNAIL_IMAGE_NAME = "thumbnail";
+
+    // embedded thumbnails with another aspect ratio are not used
+    private static final double MAX_ASPECT_RATIO_DIFFERENCE = 0.02;
+
+    // maximal number of level pixels, read by one native call
+    private static final int MAX_READ_PIXELS = 1024 * 1024;
+
+    private static final File CACHE_DIR = cacheDir();
+
+    private static final AtomicLong THREAD_COUNTER = new AtomicLong();
+
+    // shared by all thumbnails; threads are stopped when idle
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private OpenSlideThumbnails() {
+    }
+
+    static BufferedImage createThumbnailImage(OpenSlide osr, int maxSize)
+            throws IOException {
+        long w = osr.getLevel0Width();
+        long h = osr.getLevel0Height();
+        String quickhash1 = osr
+                .getProperty(OpenSlide.PROPERTY_NAME_QUICKHASH1);
+        File cacheFile = CACHE_DIR == null || quickhash1 == null ? null
+                : new File(CACHE_DIR, quickhash1 + "-" + maxSize + ".png");
+        if (cacheFile != null && cacheFile.isFile()) {
+            try {
+                BufferedImage cached = ImageIO.read(cacheFile);
+                if (cached != null) {
+                    return toIntRGB(cached);
+                }
+            } catch (IOException e) {
+                // corrupted cache file: it will be rewritten
+            }
+        }
+        BufferedImage result = createThumbnailImage(osr, 0, 0, w, h, maxSize);
+        if (cacheFile != null) {
+            store(result, cacheFile);
+        }
+        return result;
+    }
+
+    static BufferedImage createThumbnailImage(OpenSlide osr, long x, long y,
+            long w, long h, int maxSize) throws IOException {
+        double ds = (double) Math.max(w, h) / maxSize;
+        if (ds < 1.0) {
+            ds = 1.0;
+        }
+        int sw = (int) (w / ds);
+        int sh = (int) (h / ds);
+        if (sw <= 0 || sh <= 0) {
+            throw new IllegalArgumentException("Too small thumbnail: " + sw
+                    + "x" + sh);
+        }
+        if (x == 0 && y == 0 && w == osr.getLevel0Width()
+                && h == osr.getLevel0Height()) {
+            BufferedImage embedded = embeddedThumbnail(osr, sw, sh);
+            if (embedded != null) {
+                return embedded;
+            }
+        }
+        return readLevel(osr, x, y, w, h, ds, sw, sh);
+    }
+
+    private static BufferedImage embeddedThumbnail(OpenSlide osr, int sw,
+            int sh) throws IOException {
+        if (!osr.getAssociatedImages().containsKey(THUMBNAIL_IMAGE_NAME)) {
+            return null;
+        }
+        BufferedImage image = toIntRGB(osr
+                .getAssociatedImage(THUMBNAIL_IMAGE_NAME));
+        int iw = image.getWidth();
+        int ih = image.getHeight();
+        double slideAspect = (double) osr.getLevel0Width()
+                / osr.getLevel0Height();
+        double imageAspect = (double) iw / ih;
+        if (iw < sw || ih < sh || Math.abs(imageAspect / slideAspect - 1.0)
+                > MAX_ASPECT_RATIO_DIFFERENCE) {
+            return null;
+        }
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer())
+                .getData();
+        Averager averager = new Averager(iw, ih, sw, sh);
+        averager.add(data, 0, 0, iw, ih);
+        return averager.toImage();
+    }
+
+    private static BufferedImage readLevel(final OpenSlide osr, final long x,
+            final long y, long w, long h, double ds, int sw, int sh)
+            throws IOException {
+        final int level = osr.getBestLevelForDownsample(ds);
+        final double levelDS = osr.getLevelDownsample(level);
+        final long lx = (long) (x / levelDS);
+        final long ly = (long) (y / levelDS);
+        final int lw = (int) Math.max(1, Math.min((long) (w / levelDS),
+                osr.getLevelWidth(level) - lx));
+        final int lh = (int) Math.max(1, Math.min((long) (h / levelDS),
+                osr.getLevelHeight(level) - ly));
+        final Averager averager = new Averager(lw, lh, sw, sh);
+
+        // tiles are aligned to thumbnail pixels, so they can be averaged
+        // independently
+        int tileSide = (int) Math.max(1, Math.sqrt(MAX_READ_PIXELS)
+                / Math.ceil(Math.max((double) lw / sw, (double) lh / sh)));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int ty = 0; ty < sh; ty += tileSide) {
+                for (int tx = 0; tx < sw; tx += tileSide) {
+                    final int fromX = averager.sourceFromX(tx);
+                    final int fromY = averager.sourceFromY(ty);
+                    final int toX = averager.sourceFromX(Math.min(sw, tx
+                            + tileSide));
+                    final int toY = averager.sourceFromY(Math.min(sh, ty
+                            + tileSide));
+                    futures.add(EXECUTOR.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            readTile(osr, level, levelDS, lx, ly, averager,
+                                    fromX, fromY, toX - fromX, toY - fromY);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            // after an error, the remaining tiles are not necessary
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return averager.toImage();
+    }
+
+    private static void readTile(OpenSlide osr, int level, double levelDS,
+            long lx, long ly, Averager averager, int fromX, int fromY,
+            int w, int h) throws IOException {
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        // very large downsampling: several native calls per tile
+        int rowsPerRead = Math.max(1, Math.min(h, MAX_READ_PIXELS / w));
+        int[] data = new int[w * rowsPerRead];
+        for (int y = fromY; y < fromY + h; y += rowsPerRead) {
+            int rows = Math.min(rowsPerRead, fromY + h - y);
+            // rounding: truncation would shift tiles by a level-0 pixel
+            osr.paintRegionARGB(data, Math.round((lx + fromX) * levelDS),
+                    Math.round((ly + y) * levelDS), level, w, rows);
+            averager.add(data, fromX, y, w, rows);
+        }
+    }
+
+    private static BufferedImage toIntRGB(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage result = new BufferedImage(image.getWidth(), image
+                .getHeight(), BufferedImage.TYPE_INT_RGB);
+        result.getGraphics().drawImage(image, 0, 0, null);
+        return result;
+    }
+
+    private static void store(BufferedImage image, File cacheFile) {
+        // write and rename: parallel processes must not see partial files
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName()
+                + "." + Thread.currentThread().getId() + "."
+                + System.nanoTime() + ".tmp");
+        try {
+            cacheFile.getParentFile().mkdirs();
+            if (ImageIO.write(image, "png", tempFile)) {
+                if (!tempFile.renameTo(cacheFile)) {
+                    tempFile.delete();
+                }
+            }
+        } catch (IOException e) {
+            // the cache is optional
+            tempFile.delete();
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor result = new ThreadPoolExecutor(nThreads,
+                nThreads, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "OpenSlideThumbnails-"
+                                + THREAD_COUNTER.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
+    private static File cacheDir() {
+        String dir = System.getProperty("org.openslide.thumbnailCacheDir");
+        return dir == null || dir.isEmpty() ? null : new File(dir);
+    }
+
+    /*
+     * Area-averaging downsampler: every source pixel is added to exactly
+     * one thumbnail pixel. Premultiplied ARGB is averaged as is, so
+     * transparent areas become black, as in paintRegion-based thumbnails.
+     * Parallel tiles must be aligned to thumbnail pixels.
+     */
+    private static final class Averager {
+        private final int srcW;
+
+        private final int srcH;
+
+        private final int dstW;
+
+        private final int dstH;
+
+        private final int[] targetX;
+
+        private final int[] targetY;
+
+        private final long[] sums;
+
+        private final int[] counts;
+
+        Averager(int srcW, int srcH, int dstW, int dstH) {
+            this.srcW = srcW;
+            this.srcH = srcH;
+            this.dstW = dstW;
+            this.dstH = dstH;
+            this.targetX = new int[srcW];
+            this.targetY = new int[srcH];
+            for (int x = 0; x < srcW; x++) {
+                targetX[x] = (int) ((long) x * dstW / srcW);
+            }
+            for (int y = 0; y < srcH; y++) {
+                targetY[y] = (int) ((long) y * dstH / srcH);
+            }
+            this.sums = new long[3 * dstW * dstH];
+            this.counts = new int[dstW * dstH];
+        }
+
+        // first source pixel of the given thumbnail column
+        int sourceFromX(int tx) {
+            return (int) (((long) tx * srcW + dstW - 1) / dstW);
+        }
+
+        // first source pixel of the given thumbnail row
+        int sourceFromY(int ty) {
+            return (int) (((long) ty * srcH + dstH - 1) / dstH);
+        }
+
+        void add(int[] data, int fromX, int fromY, int w, int h) {
+            for (int y = 0; y < h; y++) {
+                int rowOffset = targetY[fromY + y] * dstW;
+                for (int x = 0, disp = y * w; x < w; x++, disp++) {
+                    int t = rowOffset + targetX[fromX + x];
+                    int v = data[disp];
+                    sums[3 * t] += (v >>> 16) & 0xFF;
+                    sums[3 * t + 1] += (v >>> 8) & 0xFF;
+                    sums[3 * t + 2] += v & 0xFF;
+                    counts[t]++;
+                }
+            }
+        }
+
+        BufferedImage toImage() {
+            BufferedImage result = new BufferedImage(dstW, dstH,
+                    BufferedImage.TYPE_INT_RGB);
+            int[] data = ((DataBufferInt) result.getRaster().getDataBuffer())
+                    .getData();
+            for (int t = 0; t < data.length; t++) {
+                int n = counts[t];
+                if (n > 0) {
+                    int r = (int) ((sums[3 * t] + n / 2) / n);
+                    int g = (int) ((sums[3 * t + 1] + n / 2) / n);
+                    int b = (int) ((sums[3 * t + 2] + n / 2) / n);
+                    data[t] = (r << 16) | (g << 8) | b;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  OpenSlide, a library for reading whole slide image files
+ *
+ *  Copyright (c) 2007-2010 Carnegie Mellon University
+ *  All rights reserved.
+ *
+ *  OpenSlide is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as
+ *  published by the Free Software Foundation, version 2.1.
+ *
+ *  OpenSlide is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with OpenSlide. If not, see
+ *  <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.openslide.gui;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+import org.openslide.OpenSlide;
+import org.openslide.OpenSlideDisposedException;
+
+/*
+ * Renders fixed-size display tiles of OpenSlideView on background threads
+ * and keeps them in an LRU cache. One renderer is shared by linked views.
+ * Tiles are transparent where the slide is empty, so the cache does not
+ * depend on the background color of the view.
+ */
+final class OpenSlideTileRenderer {
+    static final int TILE_SIZE = 256;
+
+    private static final int DEFAULT_MAX_CACHED_TILES = 512;
+    // - 128 MB of ARGB tiles
+
+    private static final AtomicLong THREAD_COUNTER = new AtomicLong();
+
+    private final int maxCachedTiles;
+
+    private final Map<Key, BufferedImage> tiles;
+
+    private final Set<Key> pending = new HashSet<Key>();
+
+    private final AtomicLong requestCounter = new AtomicLong();
+
+    private final ThreadPoolExecutor executor;
+
+    OpenSlideTileRenderer() {
+        this(DEFAULT_MAX_CACHED_TILES, Math.max(1, Math.min(4, Runtime
+                .getRuntime().availableProcessors())));
+    }
+
+    OpenSlideTileRenderer(int maxCachedTiles, int numberOfThreads) {
+        this.maxCachedTiles = maxCachedTiles;
+        this.tiles = new LinkedHashMap<Key, BufferedImage>(256, 0.75f, true);
+        this.executor = new ThreadPoolExecutor(numberOfThreads,
+                numberOfThreads, 5, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "OpenSlideTileRenderer-"
+                                + THREAD_COUNTER.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized BufferedImage getTile(Key key) {
+        return tiles.get(key);
+    }
+
+    /*
+     * Schedules rendering of the tile, if it is not cached or already
+     * scheduled. Visible tiles are rendered before prefetched ones, and
+     * newer requests before older ones, so fast pans do not wait for
+     * tiles that are already out of view. The callback is invoked on the
+     * event dispatch thread when the tile is ready.
+     */
+    void request(Key key, boolean visible, Callback callback) {
+        synchronized (this) {
+            if (tiles.containsKey(key) || !pending.add(key)) {
+                return;
+            }
+        }
+        executor.execute(new Task(key, visible, requestCounter
+                .incrementAndGet(), callback));
+    }
+
+    /*
+     * Removes the queued requests for tiles of the slide, which are at
+     * another downsample or outside the given range of tiles: after zooming
+     * or panning they are not visible more and only delay the actual ones.
+     * Requests, which are being rendered, are completed.
+     */
+    void cancelStale(OpenSlide osr, double downsample, int fromTX,
+            int fromTY, int toTX, int toTY) {
+        for (Runnable r : executor.getQueue().toArray(new Runnable[0])) {
+            Key key = ((Task) r).key;
+            if (key.osr != osr) {
+                continue;
+            }
+            if (key.downsample != downsample || key.tileX < fromTX
+                    || key.tileX > toTX || key.tileY < fromTY
+                    || key.tileY > toTY) {
+                if (executor.remove(r)) {
+                    synchronized (this) {
+                        pending.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    // stops rendering threads and frees cached tiles
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            tiles.clear();
+            pending.clear();
+        }
+    }
+
+    private BufferedImage render(Key key) throws IOException {
+        BufferedImage result = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = result.createGraphics();
+        try {
+            key.osr.paintRegion(g, 0, 0, (long) key.tileX * TILE_SIZE,
+                    (long) key.tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE,
+                    key.downsample);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    private synchronized void put(Key key, BufferedImage tile) {
+        pending.remove(key);
+        if (tile == null) {
+            return;
+        }
+        tiles.put(key, tile);
+        while (tiles.size() > maxCachedTiles) {
+            Key eldest = tiles.keySet().iterator().next();
+            tiles.remove(eldest);
+        }
+    }
+
+    interface Callback {
+        // called on the event dispatch thread
+        void tileReady(Key key);
+    }
+
+    static final class Key {
+        final OpenSlide osr;
+
+        final double downsample;
+
+        final int tileX;
+
+        final int tileY;
+
+        Key(OpenSlide osr, double downsample, int tileX, int tileY) {
+            this.osr = osr;
+            this.downsample = downsample;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            // identity: linked views may show different handles of the
+            // same slide, and OpenSlide.equals compares quickhash-1 only
+            return osr == k.osr && downsample == k.downsample
+                    && tileX == k.tileX && tileY == k.tileY;
+        }
+
+        @Override
+        public int hashCode() {
+            long ds = Double.doubleToLongBits(downsample);
+            int result = System.identityHashCode(osr);
+            result = 31 * result + (int) (ds ^ (ds >>> 32));
+            result = 31 * result + tileX;
+            result = 31 * result + tileY;
+            return result;
+        }
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        private final Key key;
+
+        private final boolean visible;
+
+        private final long order;
+
+        private final Callback callback;
+
+        Task(Key key, boolean visible, long order, Callback callback) {
+            this.key = key;
+            this.visible = visible;
+            this.order = order;
+            this.callback = callback;
+        }
+
+        public void run() {
+            BufferedImage tile = null;
+            try {
+                tile = render(key);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (OpenSlideDisposedException e) {
+                // the slide was closed while the tile was waiting
+            } finally {
+                put(key, tile);
+            }
+            if (tile != null) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        callback.tileReady(key);
+                    }
+                });
+            }
+        }
+
+        public int compareTo(Task o) {
+            if (visible != o.visible) {
+                return visible ? -1 : 1;
+            }
+            return order > o.order ? -1 : order < o.order ? 1 : 0;
+        }
+    }
+}
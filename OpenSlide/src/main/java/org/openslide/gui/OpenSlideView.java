@@ -33,7 +33,6 @@ import java.awt.geom.Ellipse2D;
 import java.awt.geom.Path2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.io.IOException;
 
 import javax.swing.*;
 
@@ -42,6 +41,10 @@ import org.openslide.OpenSlide;
 public class OpenSlideView extends JPanel {
     private static final int KEYBOARD_SCROLL_AMOUNT = 100;
 
+    // how many coarser zoom steps are searched for cached tiles,
+    // drawn upscaled while the tiles of the current zoom are rendered
+    private static final int MAX_FALLBACK_EXPONENTS = 8;
+
     private boolean selectionsAsPins;
 
     final private double downsampleBase;
@@ -66,6 +69,16 @@ public class OpenSlideView extends JPanel {
 
     transient private BufferedImage dbuf;
 
+    transient private OpenSlideTileRenderer tileRenderer =
+            new OpenSlideTileRenderer();
+
+    transient final private OpenSlideTileRenderer.Callback tileCallback =
+            new OpenSlideTileRenderer.Callback() {
+                public void tileReady(OpenSlideTileRenderer.Key key) {
+                    tileArrived(key);
+                }
+            };
+
     private double tmpZoomScale = 1.0;
 
     private int tmpZoomX;
@@ -686,6 +699,12 @@ public class OpenSlideView extends JPanel {
     public void linkWithOther(OpenSlideView otherView) {
         this.otherView = otherView;
         otherView.otherView = this;
+        // linked views share decoded tiles
+        OpenSlideTileRenderer replaced = otherView.tileRenderer;
+        if (replaced != tileRenderer) {
+            otherView.tileRenderer = tileRenderer;
+            replaced.shutdown();
+        }
     }
 
     public void unlinkOther() {
@@ -769,6 +788,12 @@ public class OpenSlideView extends JPanel {
         dg.dispose();
     }
 
+    /*
+     * Never decodes the slide on the event dispatch thread: draws the cached
+     * tiles of the current zoom, fills the missing ones with upscaled tiles
+     * of coarser zooms (if cached), and schedules rendering of the missing
+     * tiles and of the ring of tiles around the viewport.
+     */
     private void paintBackingStore(Graphics2D g) {
         double ds = getDownsample();
         int offsetX = viewPosition.x;
@@ -779,12 +804,149 @@ public class OpenSlideView extends JPanel {
         g.setBackground(getBackground());
         g.clearRect(clip.x, clip.y, clip.width, clip.height);
 
+        final int ts = OpenSlideTileRenderer.TILE_SIZE;
+        int fromTX = tileIndex(offsetX + clip.x, ds, true);
+        int fromTY = tileIndex(offsetY + clip.y, ds, false);
+        int toTX = tileIndex(offsetX + clip.x + clip.width - 1, ds, true);
+        int toTY = tileIndex(offsetY + clip.y + clip.height - 1, ds, false);
+        for (int ty = fromTY; ty <= toTY; ty++) {
+            for (int tx = fromTX; tx <= toTX; tx++) {
+                OpenSlideTileRenderer.Key key = new OpenSlideTileRenderer.Key(
+                        osr, ds, tx, ty);
+                BufferedImage tile = tileRenderer.getTile(key);
+                if (tile != null) {
+                    g.drawImage(tile, tx * ts - offsetX, ty * ts - offsetY,
+                            null);
+                } else {
+                    Rectangle r = new Rectangle(tx * ts - offsetX, ty * ts
+                            - offsetY, ts, ts).intersection(clip);
+                    if (!r.isEmpty()) {
+                        paintFallback(g, r);
+                    }
+                    tileRenderer.request(key, true, tileCallback);
+                }
+            }
+        }
+        prefetchAroundViewport();
+    }
+
+    private void paintFallback(Graphics2D g, Rectangle r) {
+        double ds = getDownsample();
+        int maxExponent = Math.min(maxDownsampleExponent, downsampleExponent
+                + MAX_FALLBACK_EXPONENTS);
+        final int ts = OpenSlideTileRenderer.TILE_SIZE;
+        Shape oldClip = g.getClip();
+        g.setClip(r);
         try {
-            osr.paintRegion(g, clip.x, clip.y, offsetX + clip.x, offsetY
-                    + clip.y, clip.width, clip.height, ds);
-        } catch (IOException e) {
-            e.printStackTrace();
+            // coarsest first: finer tiles, if cached, are drawn over them
+            for (int e = maxExponent; e > downsampleExponent; e--) {
+                double coarseDS = Math.pow(downsampleBase, e);
+                double scale = coarseDS / ds;
+                int fromTX = tileIndex((viewPosition.x + r.x) / scale,
+                        coarseDS, true);
+                int fromTY = tileIndex((viewPosition.y + r.y) / scale,
+                        coarseDS, false);
+                int toTX = tileIndex((viewPosition.x + r.x + r.width - 1)
+                        / scale, coarseDS, true);
+                int toTY = tileIndex((viewPosition.y + r.y + r.height - 1)
+                        / scale, coarseDS, false);
+                for (int ty = fromTY; ty <= toTY; ty++) {
+                    for (int tx = fromTX; tx <= toTX; tx++) {
+                        BufferedImage tile = tileRenderer
+                                .getTile(new OpenSlideTileRenderer.Key(osr,
+                                        coarseDS, tx, ty));
+                        if (tile == null) {
+                            continue;
+                        }
+                        int x1 = (int) Math.floor(tx * ts * scale)
+                                - viewPosition.x;
+                        int y1 = (int) Math.floor(ty * ts * scale)
+                                - viewPosition.y;
+                        int x2 = (int) Math.ceil((tx + 1) * ts * scale)
+                                - viewPosition.x;
+                        int y2 = (int) Math.ceil((ty + 1) * ts * scale)
+                                - viewPosition.y;
+                        g.drawImage(tile, x1, y1, x2 - x1, y2 - y1, null);
+                    }
+                }
+            }
+        } finally {
+            g.setClip(oldClip);
+        }
+    }
+
+    private void prefetchAroundViewport() {
+        if (dbuf == null) {
+            return;
         }
+        double ds = getDownsample();
+        int fromTX = tileIndex(viewPosition.x, ds, true) - 1;
+        int fromTY = tileIndex(viewPosition.y, ds, false) - 1;
+        int toTX = tileIndex(viewPosition.x + dbuf.getWidth() - 1, ds,
+                true) + 1;
+        int toTY = tileIndex(viewPosition.y + dbuf.getHeight() - 1, ds,
+                false) + 1;
+        // requests for the previous viewport or zoom are not actual more
+        tileRenderer.cancelStale(osr, ds, fromTX, fromTY, toTX, toTY);
+        for (int ty = fromTY; ty <= toTY; ty++) {
+            for (int tx = fromTX; tx <= toTX; tx++) {
+                if (tx == fromTX || tx == toTX || ty == fromTY || ty == toTY) {
+                    if (isTileInsideSlide(tx, ty, ds)) {
+                        tileRenderer.request(new OpenSlideTileRenderer.Key(
+                                osr, ds, tx, ty), false, tileCallback);
+                    }
+                }
+            }
+        }
+    }
+
+    // tile containing the given pixel of the downsampled slide;
+    // the result is clamped to the slide, so tiles outside it are never
+    // requested
+    private int tileIndex(double position, double ds, boolean horizontal) {
+        long size = horizontal ? osr.getLevel0Width() : osr.getLevel0Height();
+        int maxIndex = (int) Math.max(0, Math.ceil(size / ds)
+                / OpenSlideTileRenderer.TILE_SIZE - 1);
+        int index = (int) Math.floor(position
+                / OpenSlideTileRenderer.TILE_SIZE);
+        return Math.max(0, Math.min(maxIndex, index));
+    }
+
+    private boolean isTileInsideSlide(int tx, int ty, double ds) {
+        return tx >= 0 && ty >= 0
+                && (long) tx * OpenSlideTileRenderer.TILE_SIZE < osr
+                        .getLevel0Width() / ds
+                && (long) ty * OpenSlideTileRenderer.TILE_SIZE < osr
+                        .getLevel0Height() / ds;
+    }
+
+    private void tileArrived(OpenSlideTileRenderer.Key key) {
+        if (dbuf == null || key.osr != osr
+                || key.downsample != getDownsample()) {
+            // the view has been zoomed since the request
+            return;
+        }
+        final int ts = OpenSlideTileRenderer.TILE_SIZE;
+        Rectangle r = new Rectangle(key.tileX * ts - viewPosition.x,
+                key.tileY * ts - viewPosition.y, ts, ts)
+                .intersection(new Rectangle(0, 0, dbuf.getWidth(), dbuf
+                        .getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        BufferedImage tile = tileRenderer.getTile(key);
+        if (tile == null) {
+            // evicted from the cache before this callback
+            return;
+        }
+        Graphics2D g = dbuf.createGraphics();
+        g.setClip(r);
+        g.setBackground(getBackground());
+        g.clearRect(r.x, r.y, r.width, r.height);
+        g.drawImage(tile, key.tileX * ts - viewPosition.x,
+                key.tileY * ts - viewPosition.y, null);
+        g.dispose();
+        repaint(r);
     }
 
     public static void paintSelection(Graphics2D g, Shape selection, int x,
@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.simagis.pyramid.loci;
+
+import net.algart.math.Range;
+
+// One channel of the composite image, built by LociPlanePyramidSource in compositing mode.
+// The channel intensities from the window are mapped to 0..1 and multiplied by the colour;
+// null window means the intensity range of the channel, found by the coarsest level.
+// The colours of indexed channels are taken from the lookup table of the file.
+public final class LociCompositeChannel {
+    private final int channel;
+    private final int color;
+    private final Range window;
+
+    // color is 0xRRGGBB; channel is an index of RGB channel among all channels in the file
+    // (getEffectiveSizeC() * getRGBChannelCount())
+    public LociCompositeChannel(int channel, int color, Range window) {
+        if (channel < 0) {
+            throw new IllegalArgumentException("Negative channel index");
+        }
+        if (window != null && window.size() <= 0.0) {
+            throw new IllegalArgumentException("Empty intensity window " + window);
+        }
+        this.channel = channel;
+        this.color = color & 0xFFFFFF;
+        this.window = window;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public Range getWindow() {
+        return window;
+    }
+
+    @Override
+    public String toString() {
+        return "channel " + channel + String.format(", color #%06X", color)
+            + (window == null ? ", automatic window" : ", window " + window);
+    }
+}
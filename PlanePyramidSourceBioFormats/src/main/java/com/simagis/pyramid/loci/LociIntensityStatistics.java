@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.simagis.pyramid.loci;
+
+import net.algart.arrays.PArray;
+import net.algart.math.Range;
+
+import java.util.Properties;
+
+// Intensity statistics of one image plane: minimum, maximum and histogram of every channel,
+// usually calculated once by the coarsest resolution level and stored in the metadata cache.
+// Filled in two passes: addToRanges for all data, then addToHistograms for the same data.
+final class LociIntensityStatistics {
+    static final int NUMBER_OF_BINS = 256;
+
+    private final int bandCount;
+    private final double[] min;
+    private final double[] max;
+    private final long[][] histograms;
+
+    LociIntensityStatistics(int bandCount) {
+        if (bandCount <= 0) {
+            throw new IllegalArgumentException("Zero or negative number of bands");
+        }
+        this.bandCount = bandCount;
+        this.min = new double[bandCount];
+        this.max = new double[bandCount];
+        this.histograms = new long[bandCount][NUMBER_OF_BINS];
+        java.util.Arrays.fill(min, Double.POSITIVE_INFINITY);
+        java.util.Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    int bandCount() {
+        return bandCount;
+    }
+
+    // The array contains interleaved pixels: bandCount elements per pixel
+    void addToRanges(PArray array) {
+        for (long i = 0, n = array.length(); i < n; ) {
+            for (int band = 0; band < bandCount && i < n; band++, i++) {
+                final double v = array.getDouble(i);
+                if (v < min[band]) {
+                    min[band] = v;
+                }
+                if (v > max[band]) {
+                    max[band] = v;
+                }
+            }
+        }
+    }
+
+    // Must be called after all calls of addToRanges
+    void addToHistograms(PArray array) {
+        final double[] multipliers = new double[bandCount];
+        for (int band = 0; band < bandCount; band++) {
+            final double size = max[band] - min[band];
+            multipliers[band] = size > 0.0 ? NUMBER_OF_BINS / size : 0.0;
+        }
+        for (long i = 0, n = array.length(); i < n; ) {
+            for (int band = 0; band < bandCount && i < n; band++, i++) {
+                final int bin = (int) ((array.getDouble(i) - min[band]) * multipliers[band]);
+                histograms[band][Math.max(0, Math.min(NUMBER_OF_BINS - 1, bin))]++;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return min[0] > max[0];
+    }
+
+    Range range(int band) {
+        return isEmpty() ? Range.valueOf(0.0, 0.0) : Range.valueOf(min[band], max[band]);
+    }
+
+    // Common range of all channels: stretching to it does not change colour balance
+    Range totalRange() {
+        if (isEmpty()) {
+            return Range.valueOf(0.0, 0.0);
+        }
+        double totalMin = min[0];
+        double totalMax = max[0];
+        for (int band = 1; band < bandCount; band++) {
+            totalMin = Math.min(totalMin, min[band]);
+            totalMax = Math.max(totalMax, max[band]);
+        }
+        return Range.valueOf(totalMin, totalMax);
+    }
+
+    // NUMBER_OF_BINS equal bins from range(band).min() to range(band).max()
+    long[] histogram(int band) {
+        return histograms[band].clone();
+    }
+
+    void store(Properties properties, String prefix) {
+        properties.setProperty(prefix + "bandCount", String.valueOf(bandCount));
+        for (int band = 0; band < bandCount; band++) {
+            properties.setProperty(prefix + band + ".min", String.valueOf(min[band]));
+            properties.setProperty(prefix + band + ".max", String.valueOf(max[band]));
+            final StringBuilder sb = new StringBuilder();
+            for (int k = 0; k < NUMBER_OF_BINS; k++) {
+                sb.append(k > 0 ? "," : "").append(histograms[band][k]);
+            }
+            properties.setProperty(prefix + band + ".histogram", sb.toString());
+        }
+    }
+
+    // Returns null if there are no valid statistics with this prefix
+    static LociIntensityStatistics load(Properties properties, String prefix, int bandCount) {
+        try {
+            if (Integer.parseInt(properties.getProperty(prefix + "bandCount")) != bandCount) {
+                return null;
+            }
+            final LociIntensityStatistics result = new LociIntensityStatistics(bandCount);
+            for (int band = 0; band < bandCount; band++) {
+                final String min = properties.getProperty(prefix + band + ".min");
+                final String max = properties.getProperty(prefix + band + ".max");
+                final String histogram = properties.getProperty(prefix + band + ".histogram");
+                if (min == null || max == null || histogram == null) {
+                    return null;
+                }
+                result.min[band] = Double.parseDouble(min);
+                result.max[band] = Double.parseDouble(max);
+                final String[] bins = histogram.split(",");
+                if (bins.length != NUMBER_OF_BINS) {
+                    return null;
+                }
+                for (int k = 0; k < NUMBER_OF_BINS; k++) {
+                    result.histograms[band][k] = Long.parseLong(bins[k]);
+                }
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null; // including null bandCount
+        }
+    }
+}
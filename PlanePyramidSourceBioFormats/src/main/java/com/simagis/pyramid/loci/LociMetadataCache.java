@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.simagis.pyramid.loci;
+
+import loci.formats.IFormatReader;
+import loci.formats.Memoizer;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Persistent results of long analysis of the image file, stored in the given directory:
+// Bio-Formats memo files (serialized state of initialized readers) and a sidecar properties file
+// (selected series, geometry, etc.). The properties are valid while the length and the modification time
+// of the image file stay the same. In a common cache directory, the name of the sidecar file contains
+// a hash of the image path, and the path itself is checked while loading.
+final class LociMetadataCache {
+    private static final Logger LOGGER = Logger.getLogger(LociMetadataCache.class.getName());
+
+    private static final String FILE_LENGTH_PROPERTY = "fileLength";
+    private static final String LAST_MODIFIED_PROPERTY = "lastModified";
+    private static final String PATH_PROPERTY = "path";
+
+    private final File directory;
+    private final File imageFile;
+
+    LociMetadataCache(File directory, File imageFile) {
+        if (directory == null || imageFile == null) {
+            throw new NullPointerException("Null directory or image file");
+        }
+        this.directory = directory;
+        this.imageFile = imageFile;
+    }
+
+    IFormatReader memoizer(IFormatReader reader) {
+        final File imageDirectory = imageFile.getAbsoluteFile().getParentFile();
+        if (directory.getAbsoluteFile().equals(imageDirectory)) {
+            // standard Bio-Formats location: hidden .bfmemo file near the image
+            return new Memoizer(reader, Memoizer.DEFAULT_MINIMUM_ELAPSED);
+        }
+        return new Memoizer(reader, Memoizer.DEFAULT_MINIMUM_ELAPSED, directory);
+    }
+
+    // Returns null if there are no valid cached properties
+    Properties load() {
+        final File file = propertiesFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties result = new Properties();
+        try {
+            final InputStream stream = new FileInputStream(file);
+            try {
+                result.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read " + file, e);
+            return null;
+        }
+        if (!imageFile.getAbsolutePath().equals(result.getProperty(PATH_PROPERTY))
+            || !String.valueOf(imageFile.length()).equals(result.getProperty(FILE_LENGTH_PROPERTY))
+            || !String.valueOf(imageFile.lastModified()).equals(result.getProperty(LAST_MODIFIED_PROPERTY)))
+        {
+            return null;
+        }
+        return result;
+    }
+
+    // Adds the given properties to the existing valid ones (if any);
+    // errors are only logged, because the cache is not necessary for correct work
+    void store(Properties properties) {
+        final File file = propertiesFile();
+        final Properties result = load();
+        final Properties merged = result != null ? result : new Properties();
+        merged.putAll(properties);
+        merged.setProperty(PATH_PROPERTY, imageFile.getAbsolutePath());
+        merged.setProperty(FILE_LENGTH_PROPERTY, String.valueOf(imageFile.length()));
+        merged.setProperty(LAST_MODIFIED_PROPERTY, String.valueOf(imageFile.lastModified()));
+        final File tempFile = new File(directory, file.getName() + "." + Thread.currentThread().getId()
+            + "." + System.nanoTime() + ".tmp");
+        // - unique also between processes, sharing the cache directory
+        try {
+            directory.mkdirs();
+            final OutputStream stream = new FileOutputStream(tempFile);
+            try {
+                merged.store(stream, "Loci metadata cache for " + imageFile.getAbsolutePath());
+            } finally {
+                stream.close();
+            }
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("Cannot rename " + tempFile + " to " + file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write " + file, e);
+            tempFile.delete();
+        }
+    }
+
+    private File propertiesFile() {
+        final File imageDirectory = imageFile.getAbsoluteFile().getParentFile();
+        if (directory.getAbsoluteFile().equals(imageDirectory)) {
+            return new File(directory, "." + imageFile.getName() + ".loci.properties");
+        }
+        return new File(directory, imageFile.getName() + "."
+            + Integer.toHexString(imageFile.getAbsolutePath().hashCode()) + ".loci.properties");
+    }
+}
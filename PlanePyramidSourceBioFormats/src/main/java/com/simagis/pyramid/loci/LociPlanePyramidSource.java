@@ -28,7 +28,6 @@ import net.algart.math.IPoint;
 import net.algart.math.IRectangularArea;
 import net.algart.simagis.pyramid.PlanePyramidTools;
 import net.algart.simagis.pyramid.PlanePyramidSource;
-import loci.common.DataTools;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
@@ -40,10 +39,30 @@ import net.algart.math.functions.LinearFunc;
 import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -54,7 +73,44 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
 {
     private static final Logger LOGGER = Logger.getLogger(LociPlanePyramidSource.class.getName());
 
+    private static final ThreadPoolExecutor PREFETCHER = new ThreadPoolExecutor(
+        2, 2, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(64),
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread result = new Thread(r, "LociPlanePyramidSource prefetcher");
+                result.setDaemon(true);
+                return result;
+            }
+        },
+        new ThreadPoolExecutor.DiscardOldestPolicy());
+    // - the oldest requests are usually not actual: the user has already moved further
+    static {
+        PREFETCHER.allowCoreThreadTimeOut(true);
+    }
+
+    private static final ThreadFactory PLANE_READER_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread result = new Thread(r, "LociPlanePyramidSource plane reader");
+            result.setDaemon(true);
+            return result;
+        }
+    };
+
+    private static final ThreadLocal<byte[]> BYTE_BUFFERS = new ThreadLocal<byte[]>();
+    // - per-thread buffers for raw bytes, returned by readers: they are converted into new Java arrays anyway
+
     private static final int DEFAULT_LOCI_COMPRESSION = 2;
+    private static final int MAX_CACHED_TILE_SIZE = 4 * 1024 * 1024;
+    // - in bytes; larger "tiles" are usually strips or whole images of non-tiled formats: no sense to cache them
+    private static final int MAX_POOLED_BUFFER_SIZE = 32 * 1024 * 1024;
+    // - in bytes; larger buffers are allocated for one reading only
+    private static final int MAX_SPECIAL_IMAGE_SIZE = 2048;
+    private static final double MAX_THUMBNAIL_ASPECT_RATIO_DIFFERENCE = 0.02;
+    private static final int LABEL = 0;
+    private static final int MACRO = 1;
+    // - indexes in associatedSeries()
 
     private final File imageFile;
     private final String imageFormat;
@@ -64,12 +120,29 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
     private final int numberOfResolutions;
     private final int bandCount;
     private final List<long[]> dimensions;
+    private final LociMetadataCache metadataCache; // null if disabled
+    private final String geometryKey;
+    private final Map<Integer, int[]> nativeTileSizes = new ConcurrentHashMap<Integer, int[]>();
+    // - resolution level -> {optimal tile width, optimal tile height}
+    private final Map<Integer, LociIntensityStatistics> intensityStatistics =
+        new ConcurrentHashMap<Integer, LociIntensityStatistics>();
+    // - image plane index -> statistics, used for auto-contrast
     private final LargeDataHolder largeData = new LargeDataHolder();
+    private volatile int[] associatedSeries = null; // {label series, macro series}; found when necessary
 
     private volatile boolean normalizeFractionalNumberOfBytesPerPixel = true;
     private volatile boolean autoContrastIfMoreThan8Bits = false;
     private volatile boolean autoContrastAlways = false;
     private volatile int imagePlaneIndex = 0;
+    private volatile int maxNumberOfReaders = 1;
+    private volatile long readerPoolIdleTimeout = 60000;
+    private volatile boolean tileCaching = true;
+    private volatile boolean eightBitOutput = false;
+    private volatile boolean prefetchNeighbourPlanes = false;
+    private volatile List<LociCompositeChannel> compositeChannels = null;
+    private final Map<String, ByteLookupTable> compositeLookupTables =
+        new ConcurrentHashMap<String, ByteLookupTable>();
+    private volatile ByteLookupTable lastLookupTable = null;
 
     public LociPlanePyramidSource(File imageFile) throws IOException, FormatException {
         this(null, imageFile);
@@ -87,6 +160,18 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         ArrayContext context, File imageFile,
         String imageFormat, Integer requiredSeries, Boolean flattenedResolutions)
         throws IOException, FormatException
+    {
+        this(context, imageFile, imageFormat, requiredSeries, flattenedResolutions, null);
+    }
+
+    // metadataCacheDirectory, if not null, is used to store Bio-Formats memo files and the sidecar file
+    // with the selected series and the geometry of the pyramid: so, reopening the image does not require
+    // full parsing of the file
+    public LociPlanePyramidSource(
+        ArrayContext context, File imageFile,
+        String imageFormat, Integer requiredSeries, Boolean flattenedResolutions,
+        File metadataCacheDirectory)
+        throws IOException, FormatException
     {
         super(context);
         if (imageFile == null) {
@@ -98,6 +183,29 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         this.imageFile = imageFile;
         this.imageFormat = imageFormat;
         this.flattenedResolutions = flattenedResolutions;
+        this.metadataCache = metadataCacheDirectory == null ? null :
+            new LociMetadataCache(metadataCacheDirectory, imageFile);
+        this.geometryKey = imageFormat + "/" + requiredSeries + "/" + flattenedResolutions;
+        final Properties cachedGeometry = metadataCache == null ? null : metadataCache.load();
+        if (isValidCachedGeometry(cachedGeometry, geometryKey)) {
+            // the reader will be initialized later, on the first access to the data
+            this.selectedSeries = Integer.parseInt(cachedGeometry.getProperty("selectedSeries"));
+            this.bandCount = Integer.parseInt(cachedGeometry.getProperty("bandCount"));
+            this.compression = Integer.parseInt(cachedGeometry.getProperty("compression"));
+            this.numberOfResolutions = Integer.parseInt(cachedGeometry.getProperty("numberOfResolutions"));
+            this.dimensions = new ArrayList<long[]>();
+            for (int k = 0; k < numberOfResolutions; k++) {
+                this.dimensions.add(new long[] {
+                    bandCount,
+                    Long.parseLong(cachedGeometry.getProperty("level." + k + ".dimX")),
+                    Long.parseLong(cachedGeometry.getProperty("level." + k + ".dimY"))});
+            }
+            if (DEBUG_LEVEL >= 1) {
+                System.out.println("Loci reader restored geometry of " + imageFile + " from the cache: "
+                    + numberOfResolutions + " layers, series " + selectedSeries);
+            }
+            return;
+        }
         this.largeData.init();
         // warning: selectedSeries is not correct yet and should be reset in the reader later
         boolean success = false;
@@ -149,7 +257,7 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
             this.dimensions.add(new long[] {bandCount, dimX, dimY});
             int compression = DEFAULT_LOCI_COMPRESSION; // for a case maxUsedNumberOfLevels=1
             for (int k = 1; k < maxUsedNumberOfLevels; k++) {
-                setResolutionLevel(k);
+                setResolutionLevel(this.largeData.reader, k);
                 long newDimX = this.largeData.reader.getSizeX();
                 long newDimY = this.largeData.reader.getSizeY();
                 if (k == 1) {
@@ -182,6 +290,19 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
                     + " among " + seriesCount + " total layers");
                 System.out.println("Loci reader instantiating " + this);
             }
+            if (metadataCache != null) {
+                final Properties geometry = new Properties();
+                geometry.setProperty("geometryKey", geometryKey);
+                geometry.setProperty("selectedSeries", String.valueOf(selectedSeries));
+                geometry.setProperty("bandCount", String.valueOf(bandCount));
+                geometry.setProperty("compression", String.valueOf(compression));
+                geometry.setProperty("numberOfResolutions", String.valueOf(numberOfResolutions));
+                for (int k = 0; k < numberOfResolutions; k++) {
+                    geometry.setProperty("level." + k + ".dimX", String.valueOf(dimensions.get(k)[DIM_WIDTH]));
+                    geometry.setProperty("level." + k + ".dimY", String.valueOf(dimensions.get(k)[DIM_HEIGHT]));
+                }
+                metadataCache.store(geometry);
+            }
             success = true;
         } finally {
             if (!success) {
@@ -229,6 +350,9 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         this.autoContrastIfMoreThan8Bits = autoContrastIfMoreThan8Bits;
     }
 
+    // In auto-contrast modes, all tiles of the plane are stretched to the same range:
+    // minimum..maximum of all channels, found once by the coarsest resolution level
+    // (and stored in the metadata cache, if it is enabled)
     public boolean isAutoContrastAlways() {
         return autoContrastAlways;
     }
@@ -248,6 +372,109 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         this.imagePlaneIndex = imagePlaneIndex;
     }
 
+    public int getMaxNumberOfReaders() {
+        return maxNumberOfReaders;
+    }
+
+    // values >1 allow parallel reading by several independently initialized readers of the same file;
+    // every additional reader requires its own (maybe long) initialization and memory
+    public void setMaxNumberOfReaders(int maxNumberOfReaders) {
+        if (maxNumberOfReaders <= 0) {
+            throw new IllegalArgumentException("Zero or negative maximal number of readers");
+        }
+        this.maxNumberOfReaders = maxNumberOfReaders;
+        largeData.reconfigurePool();
+    }
+
+    public long getReaderPoolIdleTimeout() {
+        return readerPoolIdleTimeout;
+    }
+
+    // additional readers, not used during this time (in milliseconds), are closed
+    public void setReaderPoolIdleTimeout(long readerPoolIdleTimeout) {
+        if (readerPoolIdleTimeout < 0) {
+            throw new IllegalArgumentException("Negative reader pool idle timeout");
+        }
+        this.readerPoolIdleTimeout = readerPoolIdleTimeout;
+        largeData.reconfigurePool();
+    }
+
+    // Intensity range of the given channel in the current image plane, found by the coarsest level
+    public Range getIntensityRange(int band) {
+        return intensityStatistics(imagePlaneIndex).range(band);
+    }
+
+    // Histogram of the given channel in the current image plane, found by the coarsest level:
+    // LociIntensityStatistics.NUMBER_OF_BINS equal bins covering getIntensityRange(band)
+    public long[] getIntensityHistogram(int band) {
+        return intensityStatistics(imagePlaneIndex).histogram(band);
+    }
+
+    public boolean isEightBitOutput() {
+        return eightBitOutput;
+    }
+
+    // if true, all data are returned as unsigned bytes (0..255): auto-contrast or normalization
+    // (or, if they are disabled, stretching 0..maxPossibleValue to 0..255) is applied while unpacking
+    // the bytes, returned by the reader, instead of lazy functions over 16-bit, 32-bit or float arrays
+    public void setEightBitOutput(boolean eightBitOutput) {
+        this.eightBitOutput = eightBitOutput;
+    }
+
+    public List<LociCompositeChannel> getCompositeChannels() {
+        return compositeChannels;
+    }
+
+    // Not null list enables compositing mode: readSubMatrix returns RGB bytes, blended (added) from
+    // the given channels of the Z/T position of imagePlaneIndex; other channels are not decoded at all.
+    // Null disables this mode. Special images, built from large levels, are not composited.
+    public void setCompositeChannels(List<LociCompositeChannel> compositeChannels) {
+        if (compositeChannels != null) {
+            compositeChannels = Collections.unmodifiableList(
+                new ArrayList<LociCompositeChannel>(compositeChannels));
+            for (LociCompositeChannel channel : compositeChannels) {
+                if (channel == null) {
+                    throw new NullPointerException("Null composite channel");
+                }
+            }
+            if (compositeChannels.isEmpty()) {
+                throw new IllegalArgumentException("Empty list of composite channels");
+            }
+        }
+        this.compositeChannels = compositeChannels;
+    }
+
+    public boolean isPrefetchNeighbourPlanes() {
+        return prefetchNeighbourPlanes;
+    }
+
+    // if true, every reading also decodes the same area of the planes with neighbouring Z and T
+    // into the tile cache (in background), so that stepping through Z-stacks and time series
+    // does not require cold reading; requires tile caching and is useful with maxNumberOfReaders>1
+    public void setPrefetchNeighbourPlanes(boolean prefetchNeighbourPlanes) {
+        this.prefetchNeighbourPlanes = prefetchNeighbourPlanes;
+    }
+
+    public boolean isTileCaching() {
+        return tileCaching;
+    }
+
+    // if true, regions are composed from native tiles (of optimal size for the reader),
+    // cached in LociTileCache; neighbouring requests do not decode the same tiles again
+    public void setTileCaching(boolean tileCaching) {
+        this.tileCaching = tileCaching;
+    }
+
+    // Optimal tile width of the reader at the given level: callers should align their requests to it
+    public int getNativeTileWidth(int resolutionLevel) {
+        return nativeTileSize(resolutionLevel)[0];
+    }
+
+    // Optimal tile height of the reader at the given level: callers should align their requests to it
+    public int getNativeTileHeight(int resolutionLevel) {
+        return nativeTileSize(resolutionLevel)[1];
+    }
+
     public int numberOfResolutions() {
         return numberOfResolutions;
     }
@@ -256,8 +483,9 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         return compression;
     }
 
+    // 3 (RGB) in compositing mode
     public int bandCount() {
-        return bandCount;
+        return compositeChannels != null ? 3 : bandCount;
     }
 
     public boolean isResolutionLevelAvailable(int resolutionLevel) {
@@ -272,7 +500,9 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
 
 
     public long[] dimensions(int resolutionLevel) {
-        return dimensions.get(resolutionLevel).clone();
+        final long[] result = dimensions.get(resolutionLevel).clone();
+        result[0] = bandCount();
+        return result;
     }
 
     public boolean isElementTypeSupported() {
@@ -321,17 +551,65 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         return readSubMatrix(resolutionLevel, 0, 0, dimensions[1], dimensions[2]);
     }
 
+    // MAP_IMAGE and WHOLE_SLIDE are always available (see readSpecialMatrix);
+    // LABEL_ONLY_IMAGE only if the file contains a label series
     public boolean isSpecialMatrixSupported(SpecialImageKind kind) {
-        return false;
+        if (kind == null) {
+            return false;
+        }
+        switch (kind) {
+            case WHOLE_SLIDE:
+            case MAP_IMAGE:
+                return true;
+            case LABEL_ONLY_IMAGE:
+                return associatedSeries()[LABEL] >= 0;
+            default:
+                return false;
+        }
     }
 
+    // LABEL_ONLY_IMAGE and WHOLE_SLIDE are the label and macro series of the file, if they exist
+    // (see findAssociatedImage). MAP_IMAGE and WHOLE_SLIDE without macro series are the overview of the whole
+    // image: the coarsest level, if it is not too large; else the thumbnail series of the file (if it exists),
+    // else the coarsest level subsampled by native tiles. So, large levels are never decoded entirely
+    // for a thumbnail: only the tiles, containing the used pixels. Other kinds are not supported (null).
     public Matrix<? extends PArray> readSpecialMatrix(SpecialImageKind kind) throws NotYetConnectedException {
         if (kind == null) {
             throw new NullPointerException("Null image kind");
         }
+        if (!isSpecialMatrixSupported(kind)) {
+            return null;
+        }
+        final int associatedSeries = kind == SpecialImageKind.LABEL_ONLY_IMAGE ? associatedSeries()[LABEL]
+            : kind == SpecialImageKind.WHOLE_SLIDE ? associatedSeries()[MACRO]
+            : -1;
+        if (associatedSeries >= 0) {
+            try {
+                return readAssociatedSeries(associatedSeries);
+            } catch (IOException e) {
+                throw new IOError(e);
+            } catch (FormatException e) {
+                throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
+            }
+        }
         int resolutionLevel = numberOfResolutions() - 1;
         final long[] dimensions = dimensions(resolutionLevel);
-        return readSubMatrix(resolutionLevel, 0, 0, dimensions[DIM_WIDTH], dimensions[DIM_HEIGHT]);
+        final long dimX = dimensions[DIM_WIDTH];
+        final long dimY = dimensions[DIM_HEIGHT];
+        if (dimX <= MAX_SPECIAL_IMAGE_SIZE && dimY <= MAX_SPECIAL_IMAGE_SIZE) {
+            return readSubMatrix(resolutionLevel, 0, 0, dimX, dimY);
+        }
+        try {
+            final Matrix<? extends PArray> thumbnail = readThumbnailSeries(dimX, dimY);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+            return readSubsampled(resolutionLevel, imagePlaneIndex, dimX, dimY, false);
+        } catch (IOException e) {
+            throw new IOError(e);
+        } catch (FormatException e) {
+            throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
+        }
     }
 
 
@@ -347,6 +625,283 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
     public Matrix<? extends PArray> readSubMatrix(
         int resolutionLevel, long fromX, long fromY, long toX, long toY)
     {
+        checkRectangle(resolutionLevel, fromX, fromY, toX, toY);
+        final int sizeX = (int) (toX - fromX);
+        final int sizeY = (int) (toY - fromY);
+        final List<LociCompositeChannel> compositeChannels = this.compositeChannels;
+        if (compositeChannels != null) {
+            return readComposite(compositeChannels, resolutionLevel, imagePlaneIndex, fromX, fromY, sizeX, sizeY);
+        }
+        final int planeIndex = imagePlaneIndex;
+        final PArray array = readArray(resolutionLevel, planeIndex, fromX, fromY, sizeX, sizeY, false);
+        if (prefetchNeighbourPlanes) {
+            prefetchNeighbourPlanes(resolutionLevel, planeIndex, fromX, fromY, sizeX, sizeY);
+        }
+        return Matrices.matrix(array, bandCount, sizeX, sizeY);
+    }
+
+    // Reads the same rectangle from several image planes (instead of switching imagePlaneIndex
+    // or creating a source per plane); the result list corresponds to planeIndexes.
+    // With maxNumberOfReaders>1, the planes are read in parallel by the readers of the pool.
+    // In compositing mode (see setCompositeChannels), every matrix is the composite of the channels
+    // with the Z and T of the corresponding plane, like readSubMatrix with this imagePlaneIndex.
+    public List<Matrix<? extends PArray>> readSubMatrices(
+        final int resolutionLevel, int[] planeIndexes,
+        final long fromX, final long fromY, long toX, long toY)
+    {
+        if (planeIndexes == null) {
+            throw new NullPointerException("Null planeIndexes");
+        }
+        for (int planeIndex : planeIndexes) {
+            if (planeIndex < 0) {
+                throw new IllegalArgumentException("Negative image plane index " + planeIndex);
+            }
+        }
+        checkRectangle(resolutionLevel, fromX, fromY, toX, toY);
+        final int sizeX = (int) (toX - fromX);
+        final int sizeY = (int) (toY - fromY);
+        final List<LociCompositeChannel> compositeChannels = this.compositeChannels;
+        final int numberOfThreads = Math.min(maxNumberOfReaders, planeIndexes.length);
+        final Matrix<? extends PArray>[] matrices = newMatrixArray(planeIndexes.length);
+        if (numberOfThreads <= 1) {
+            for (int k = 0; k < planeIndexes.length; k++) {
+                matrices[k] = readPlane(compositeChannels, resolutionLevel, planeIndexes[k],
+                    fromX, fromY, sizeX, sizeY);
+            }
+        } else {
+            // numberOfThreads tasks of the executor, shared by all clones of this source, take the planes one by one
+            final int[] indexes = planeIndexes.clone();
+            final AtomicInteger nextIndex = new AtomicInteger(0);
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            try {
+                for (int t = 0; t < numberOfThreads; t++) {
+                    futures.add(largeData.planeReader().submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int k; (k = nextIndex.getAndIncrement()) < indexes.length; ) {
+                                matrices[k] = readPlane(compositeChannels, resolutionLevel, indexes[k],
+                                    fromX, fromY, sizeX, sizeY);
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOError(e);
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        }
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw new IOError(cause);
+                    }
+                }
+            } finally {
+                nextIndex.set(indexes.length);
+                // - after an exception, other tasks stop reading new planes
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        final List<Matrix<? extends PArray>> result = new ArrayList<Matrix<? extends PArray>>();
+        Collections.addAll(result, matrices);
+        if (prefetchNeighbourPlanes && planeIndexes.length > 0) {
+            prefetchNeighbourPlanes(resolutionLevel, planeIndexes[planeIndexes.length - 1],
+                fromX, fromY, sizeX, sizeY);
+        }
+        return result;
+    }
+
+    // channels is null if compositing mode is not used
+    private Matrix<? extends PArray> readPlane(
+        List<LociCompositeChannel> channels,
+        int resolutionLevel, int planeIndex, long fromX, long fromY, int sizeX, int sizeY)
+    {
+        if (channels != null) {
+            return readComposite(channels, resolutionLevel, planeIndex, fromX, fromY, sizeX, sizeY);
+        }
+        final PArray array = readArray(resolutionLevel, planeIndex, fromX, fromY, sizeX, sizeY, false);
+        return Matrices.matrix(array, bandCount, sizeX, sizeY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Matrix<? extends PArray>[] newMatrixArray(int length) {
+        return new Matrix[length];
+    }
+
+    // Z and T of the composite are the Z and T of planeIndex
+    private Matrix<? extends PArray> readComposite(
+        List<LociCompositeChannel> channels,
+        int resolutionLevel, int planeIndex, long fromX, long fromY, int sizeX, int sizeY)
+    {
+        final int n = sizeX * sizeY;
+        final int[] planes = new int[channels.size()];
+        final int[] bands = new int[channels.size()];
+        try {
+            IFormatReader reader = largeData.borrow();
+            try {
+                final int[] zct = reader.getZCTCoords(
+                    Math.min(planeIndex, Math.max(reader.getImageCount() - 1, 0)));
+                final int numberOfChannels = reader.getEffectiveSizeC() * bandCount;
+                for (int k = 0; k < planes.length; k++) {
+                    final int channel = channels.get(k).getChannel();
+                    if (channel >= numberOfChannels) {
+                        throw new IllegalArgumentException("Composite channel " + channel
+                            + " is out of range 0.." + (numberOfChannels - 1));
+                    }
+                    planes[k] = reader.getIndex(zct[0], channel / bandCount, zct[2]);
+                    bands[k] = channel % bandCount;
+                }
+            } finally {
+                largeData.giveBack(reader);
+            }
+            final Range[] windows = new Range[planes.length];
+            for (int k = 0; k < planes.length; k++) {
+                // automatic windows are found before borrowing the reader: it can require reading
+                final Range window = channels.get(k).getWindow();
+                windows[k] = window != null ? window : intensityStatistics(planes[k]).range(bands[k]);
+            }
+            final int[] sums = new int[3 * n];
+            final int[] codes = new int[n];
+            reader = largeData.borrow();
+            try {
+                setResolutionLevel(reader, resolutionLevel);
+                final int pixelType = reader.getPixelType();
+                final int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+                final boolean floatingPoint = FormatTools.isFloatingPoint(pixelType);
+                final boolean interleaved = reader.isInterleaved() || bandCount == 1;
+                final ByteOrder byteOrder = reader.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+                final byte[] bytes = byteBuffer(n * bandCount * bytesPerPixel);
+                int lastPlane = -1;
+                for (int k = 0; k < planes.length && n > 0; k++) {
+                    if (planes[k] != lastPlane) {
+                        // - RGB channels of the same plane are decoded once
+                        readBytes(reader, resolutionLevel, planes[k],
+                            (int) fromX, (int) fromY, sizeX, sizeY, bytes);
+                        lastPlane = planes[k];
+                    }
+                    final Range window = windows[k];
+                    final double a = window.size() > 0.0 ? 255.0 / window.size() : 0.0;
+                    final double b = -window.min() * a;
+                    final int start = interleaved ? bands[k] : bands[k] * n;
+                    final int step = interleaved ? bandCount : 1;
+                    final ByteBuffer bb = ByteBuffer.wrap(bytes, 0, n * bandCount * bytesPerPixel).order(byteOrder);
+                    // codes: unsigned values for 8/16-bit data, intensities 0..255 for other types
+                    switch (bytesPerPixel) {
+                        case 1:
+                            for (int i = 0, e = start; i < n; i++, e += step) {
+                                codes[i] = bytes[e] & 0xFF;
+                            }
+                            break;
+                        case 2: {
+                            final ShortBuffer buffer = bb.asShortBuffer();
+                            for (int i = 0, e = start; i < n; i++, e += step) {
+                                codes[i] = buffer.get(e) & 0xFFFF;
+                            }
+                            break;
+                        }
+                        case 4: {
+                            final FloatBuffer floatBuffer = floatingPoint ? bb.asFloatBuffer() : null;
+                            final IntBuffer intBuffer = floatingPoint ? null : bb.asIntBuffer();
+                            for (int i = 0, e = start; i < n; i++, e += step) {
+                                codes[i] = toByte(a * (floatingPoint ? floatBuffer.get(e) : intBuffer.get(e)) + b)
+                                    & 0xFF;
+                            }
+                            break;
+                        }
+                        case 8: {
+                            final DoubleBuffer doubleBuffer = floatingPoint ? bb.asDoubleBuffer() : null;
+                            final LongBuffer longBuffer = floatingPoint ? null : bb.asLongBuffer();
+                            for (int i = 0, e = start; i < n; i++, e += step) {
+                                codes[i] = toByte(a * (floatingPoint ? doubleBuffer.get(e) : longBuffer.get(e)) + b)
+                                    & 0xFF;
+                            }
+                            break;
+                        }
+                        default:
+                            throw new UnsupportedOperationException("Unsupported number of bytes per pixel "
+                                + bytesPerPixel);
+                    }
+                    if (reader.isIndexed() && bytesPerPixel <= 2 && addIndexedColors(reader, sums, codes, n)) {
+                        continue;
+                    }
+                    final byte[] intensities = bytesPerPixel <= 2 ?
+                        compositeLookupTable(a, b, bytesPerPixel == 1 ? 256 : 65536) :
+                        null;
+                    final int color = channels.get(k).getColor();
+                    final int[] red = new int[256];
+                    final int[] green = new int[256];
+                    final int[] blue = new int[256];
+                    for (int v = 0; v < 256; v++) {
+                        red[v] = v * ((color >>> 16) & 0xFF) / 255;
+                        green[v] = v * ((color >>> 8) & 0xFF) / 255;
+                        blue[v] = v * (color & 0xFF) / 255;
+                    }
+                    for (int i = 0, disp = 0; i < n; i++, disp += 3) {
+                        final int v = intensities != null ? intensities[codes[i]] & 0xFF : codes[i];
+                        sums[disp] += red[v];
+                        sums[disp + 1] += green[v];
+                        sums[disp + 2] += blue[v];
+                    }
+                }
+            } finally {
+                largeData.giveBack(reader);
+            }
+            final byte[] result = new byte[3 * n];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (byte) Math.min(sums[i], 255);
+            }
+            return Matrices.matrix(SimpleMemoryModel.asUpdatableByteArray(result), 3, sizeX, sizeY);
+        } catch (IOException e) {
+            throw new IOError(e);
+        } catch (FormatException e) {
+            throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
+        }
+    }
+
+    // Returns false if the reader has no lookup table for the last read plane
+    private static boolean addIndexedColors(IFormatReader reader, int[] sums, int[] codes, int n)
+        throws IOException, FormatException
+    {
+        final byte[][] lut8 = reader.get8BitLookupTable();
+        final short[][] lut16 = lut8 == null ? reader.get16BitLookupTable() : null;
+        if ((lut8 == null || lut8.length < 3) && (lut16 == null || lut16.length < 3)) {
+            return false;
+        }
+        for (int i = 0, disp = 0; i < n; i++, disp += 3) {
+            final int code = codes[i];
+            for (int c = 0; c < 3; c++) {
+                if (lut8 != null) {
+                    sums[disp + c] += code < lut8[c].length ? lut8[c][code] & 0xFF : 0;
+                } else {
+                    sums[disp + c] += code < lut16[c].length ? (lut16[c][code] & 0xFFFF) >>> 8 : 0;
+                }
+            }
+        }
+        return true;
+    }
+
+    private byte[] compositeLookupTable(double a, double b, int length) {
+        final String key = a + "/" + b + "/" + length;
+        ByteLookupTable result = compositeLookupTables.get(key);
+        if (result == null) {
+            if (compositeLookupTables.size() >= 64) {
+                compositeLookupTables.clear(); // windows were changed many times
+            }
+            result = new ByteLookupTable(a, b, length);
+            compositeLookupTables.put(key, result);
+        }
+        return result.values;
+    }
+
+    private void checkRectangle(int resolutionLevel, long fromX, long fromY, long toX, long toY) {
         final long[] dim = dimensions(resolutionLevel);
         final long dimX = dim[DIM_WIDTH];
         final long dimY = dim[DIM_HEIGHT];
@@ -360,90 +915,807 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         {
             throw new IllegalArgumentException("Too large rectangle " + (toX - fromX) + "x" + (toY - fromY));
         }
-        final int sizeX = (int) (toX - fromX);
-        final int sizeY = (int) (toY - fromY);
-        largeData.lock.lock();
+    }
+
+    // Decodes the same rectangle in the planes with neighbouring Z and T into the tile cache
+    // in background; the current reading is not delayed
+    private void prefetchNeighbourPlanes(
+        final int resolutionLevel, final int planeIndex,
+        final long fromX, final long fromY, final int sizeX, final int sizeY)
+    {
+        if (!tileCaching || !LociTileCache.getInstance().isEnabled() || sizeX == 0 || sizeY == 0) {
+            return; // nowhere to store prefetched data
+        }
+        PREFETCHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    IFormatReader reader = largeData.borrowExisting();
+                    if (reader == null) {
+                        return; // resources were freed: prefetching must not reopen the file
+                    }
+                    final List<Integer> neighbours;
+                    try {
+                        setResolutionLevel(reader, resolutionLevel);
+                        if (!isTileCachingUsed(reader, resolutionLevel)) {
+                            return; // without caching, prefetched planes would be decoded and thrown out
+                        }
+                        neighbours = neighbourPlanes(reader, planeIndex);
+                    } finally {
+                        largeData.giveBack(reader);
+                    }
+                    for (int neighbour : neighbours) {
+                        // borrowing the reader for every plane: foreground readings may be performed between them
+                        reader = largeData.borrowExisting();
+                        if (reader == null) {
+                            return;
+                        }
+                        try {
+                            setResolutionLevel(reader, resolutionLevel);
+                            final int length = sizeX * sizeY * bandCount * FormatTools.getBytesPerPixel(
+                                reader.getPixelType());
+                            readBytes(reader, resolutionLevel, neighbour,
+                                (int) fromX, (int) fromY, sizeX, sizeY, byteBuffer(length));
+                        } finally {
+                            largeData.giveBack(reader);
+                        }
+                    }
+                    if (DEBUG_LEVEL >= 2) {
+                        System.out.printf("Loci prefetched planes %s near plane %d%n", neighbours, planeIndex);
+                    }
+                } catch (Exception e) {
+                    // prefetching is optional
+                    LOGGER.log(Level.FINE, "Cannot prefetch planes near plane " + planeIndex, e);
+                }
+            }
+        });
+    }
+
+    private static List<Integer> neighbourPlanes(IFormatReader reader, int planeIndex) {
+        final List<Integer> result = new ArrayList<Integer>();
+        final int imageCount = reader.getImageCount();
+        if (planeIndex >= imageCount) {
+            return result;
+        }
+        final int[] zct = reader.getZCTCoords(planeIndex);
+        final int z = zct[0];
+        final int c = zct[1];
+        final int t = zct[2];
+        // next planes first: usually the user continues in the same direction
+        if (z + 1 < reader.getSizeZ()) {
+            result.add(reader.getIndex(z + 1, c, t));
+        }
+        if (t + 1 < reader.getSizeT()) {
+            result.add(reader.getIndex(z, c, t + 1));
+        }
+        if (z > 0) {
+            result.add(reader.getIndex(z - 1, c, t));
+        }
+        if (t > 0) {
+            result.add(reader.getIndex(z, c, t - 1));
+        }
+        return result;
+    }
+
+    // {label series, macro series}; -1 if there is no such series
+    private int[] associatedSeries() {
+        int[] result = associatedSeries;
+        if (result == null) {
+            result = new int[] {-1, -1};
+            try {
+                final IFormatReader reader = largeData.borrow();
+                try {
+                    for (int series = 0, n = reader.getSeriesCount(); series < n; series++) {
+                        if (series == selectedSeries) {
+                            continue;
+                        }
+                        reader.setSeries(series);
+                        final int kind = findAssociatedImage(reader);
+                        if (kind >= 0 && result[kind] == -1
+                            && reader.getSizeX() <= MAX_SPECIAL_IMAGE_SIZE
+                            && reader.getSizeY() <= MAX_SPECIAL_IMAGE_SIZE)
+                        {
+                            result[kind] = series;
+                        }
+                    }
+                } finally {
+                    reader.setSeries(selectedSeries);
+                    largeData.giveBack(reader);
+                }
+            } catch (IOException e) {
+                throw new IOError(e);
+            } catch (FormatException e) {
+                throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
+            }
+            if (DEBUG_LEVEL >= 1) {
+                System.out.printf("Loci reader found label series %d and macro series %d%n", result[LABEL],
+                    result[MACRO]);
+            }
+            associatedSeries = result;
+        }
+        return result;
+    }
+
+    // Bio-Formats has no common flag for label and macro images of slide scanners (SVS, NDPI, VSI, etc.):
+    // they are separate series, recognized by their name or description in the series metadata.
+    // Returns LABEL, MACRO or -1 for other series; the reader must be already switched to the series.
+    private static int findAssociatedImage(IFormatReader reader) {
+        final Map<String, Object> metadata = reader.getSeriesMetadata();
+        if (metadata == null) {
+            return -1;
+        }
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            final String key = entry.getKey().toLowerCase();
+            if (!key.contains("name") && !key.contains("description")) {
+                continue;
+            }
+            final String value = String.valueOf(entry.getValue()).toLowerCase();
+            if (value.contains("label")) {
+                return LABEL;
+            }
+            if (value.contains("macro") || value.contains("overview")) {
+                return MACRO;
+            }
+        }
+        return -1;
+    }
+
+    private Matrix<? extends PArray> readAssociatedSeries(int series) throws IOException, FormatException {
+        final IFormatReader reader = largeData.borrow();
+        try {
+            reader.setSeries(series);
+            if (DEBUG_LEVEL >= 1) {
+                System.out.printf("Loci reader reads associated series %d (%dx%d)%n",
+                    series, reader.getSizeX(), reader.getSizeY());
+            }
+            return readWholeSeries(reader);
+        } finally {
+            reader.setSeries(selectedSeries);
+            largeData.giveBack(reader);
+        }
+    }
+
+    // The first plane of the current series of the reader: it must be small
+    private static Matrix<? extends PArray> readWholeSeries(IFormatReader reader) throws IOException, FormatException {
+        final int sizeX = reader.getSizeX();
+        final int sizeY = reader.getSizeY();
+        final int seriesBandCount = reader.getRGBChannelCount();
+        final int pixelType = reader.getPixelType();
+        final byte[] bytes = reader.openBytes(0);
+        final Object data = toInterleavedDataArray(bytes, sizeX * sizeY, seriesBandCount,
+            FormatTools.getBytesPerPixel(pixelType),
+            FormatTools.isFloatingPoint(pixelType),
+            reader.isLittleEndian(),
+            reader.isInterleaved() || seriesBandCount == 1);
+        return Matrices.matrix((PArray) SimpleMemoryModel.asUpdatableArray(data), seriesBandCount, sizeX, sizeY);
+    }
+
+    // Returns null if there is no thumbnail series with suitable sizes and aspect ratio
+    private Matrix<? extends PArray> readThumbnailSeries(long dimX, long dimY) throws IOException, FormatException {
+        final IFormatReader reader = largeData.borrow();
+        try {
+            for (int series = 0, n = reader.getSeriesCount(); series < n; series++) {
+                if (series == selectedSeries) {
+                    continue;
+                }
+                reader.setSeries(series);
+                final int sizeX = reader.getSizeX();
+                final int sizeY = reader.getSizeY();
+                if (!reader.isThumbnailSeries()
+                    || sizeX > MAX_SPECIAL_IMAGE_SIZE || sizeY > MAX_SPECIAL_IMAGE_SIZE
+                    || Math.abs((double) sizeX / (double) sizeY * (double) dimY / (double) dimX - 1.0)
+                    > MAX_THUMBNAIL_ASPECT_RATIO_DIFFERENCE)
+                {
+                    continue;
+                }
+                if (DEBUG_LEVEL >= 1) {
+                    System.out.printf("Loci reader uses thumbnail series %d (%dx%d) as a special image%n",
+                        series, sizeX, sizeY);
+                }
+                return readWholeSeries(reader);
+            }
+            return null;
+        } finally {
+            reader.setSeries(selectedSeries);
+            largeData.giveBack(reader);
+        }
+    }
+
+    // Reads every step-th pixel of every step-th row. Only the native tiles, containing these pixels, are decoded:
+    // the rectangle between the first and the last such pixels of a tile is read by one call, so a large tiled
+    // level is not decoded entirely. Large "tiles" (strips or whole images of non-tiled formats) are read by rows.
+    // If rawData, neither auto-contrast nor normalization are applied.
+    private Matrix<? extends PArray> readSubsampled(
+        int resolutionLevel, int planeIndex, long dimX, long dimY, boolean rawData)
+        throws IOException, FormatException
+    {
+        if (dimX * bandCount > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("Too large image width " + dimX + " for subsampling");
+        }
+        final long step = (Math.max(dimX, dimY) + MAX_SPECIAL_IMAGE_SIZE - 1) / MAX_SPECIAL_IMAGE_SIZE;
+        final int sizeX = (int) Math.max(1, dimX / step);
+        final int sizeY = (int) Math.max(1, dimY / step);
+        final long t1 = System.nanoTime();
+        final int pixelType;
+        final int bitsPerPixel;
+        final boolean interleaved;
+        final boolean littleEndian;
+        final int plane;
+        final int[] tileSize;
+        IFormatReader reader = largeData.borrow();
+        try {
+            setResolutionLevel(reader, resolutionLevel);
+            pixelType = reader.getPixelType();
+            bitsPerPixel = reader.getBitsPerPixel();
+            interleaved = reader.isInterleaved() || bandCount == 1;
+            littleEndian = reader.isLittleEndian();
+            plane = Math.min(planeIndex, Math.max(reader.getImageCount() - 1, 0));
+            tileSize = nativeTileSize(reader, resolutionLevel);
+        } finally {
+            largeData.giveBack(reader);
+        }
+        final int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        final int elementSize = interleaved ? bandCount * bytesPerPixel : bytesPerPixel;
+        final int numberOfPlanes = interleaved ? 1 : bandCount;
+        final boolean tiled = tileSize[0] > 0 && tileSize[1] > 0
+            && (long) tileSize[0] * (long) tileSize[1] * (long) (bandCount * bytesPerPixel) <= MAX_CACHED_TILE_SIZE;
+        final long blockWidth = tiled ? tileSize[0] : dimX;
+        final long blockHeight = tiled ? tileSize[1] : 1;
+        final byte[] result = new byte[sizeX * sizeY * bandCount * bytesPerPixel];
+        for (int y1 = 0, y2; y1 < sizeY; y1 = y2) {
+            // - result rows y1..y2-1 are taken from the same row of blocks
+            y2 = y1 + 1;
+            while (y2 < sizeY && y2 * step / blockHeight == y1 * step / blockHeight) {
+                y2++;
+            }
+            final int fromY = (int) (y1 * step);
+            final int blockSizeY = (int) ((y2 - 1) * step) + 1 - fromY;
+            for (int x1 = 0, x2; x1 < sizeX; x1 = x2) {
+                x2 = x1 + 1;
+                while (x2 < sizeX && x2 * step / blockWidth == x1 * step / blockWidth) {
+                    x2++;
+                }
+                final int fromX = (int) (x1 * step);
+                final int blockSizeX = (int) ((x2 - 1) * step) + 1 - fromX;
+                reader = largeData.borrow();
+                // - borrowing the reader for every block: other readings may be performed between them
+                try {
+                    setResolutionLevel(reader, resolutionLevel);
+                    final byte[] block = byteBuffer(blockSizeX * blockSizeY * bandCount * bytesPerPixel);
+                    readBytes(reader, resolutionLevel, plane, fromX, fromY, blockSizeX, blockSizeY, block);
+                    for (int p = 0; p < numberOfPlanes; p++) {
+                        final int blockOffset = p * blockSizeX * blockSizeY * elementSize;
+                        final int resultOffset = p * sizeX * sizeY * elementSize;
+                        for (int y = y1; y < y2; y++) {
+                            final int blockRowOffset = blockOffset + (int) ((y - y1) * step) * blockSizeX * elementSize;
+                            for (int x = x1; x < x2; x++) {
+                                System.arraycopy(block, blockRowOffset + (int) ((x - x1) * step) * elementSize,
+                                    result, resultOffset + (y * sizeX + x) * elementSize, elementSize);
+                            }
+                        }
+                    }
+                } finally {
+                    largeData.giveBack(reader);
+                }
+            }
+        }
+        final long t2 = System.nanoTime();
+        if (DEBUG_LEVEL >= 1) {
+            System.out.printf(java.util.Locale.US,
+                "Loci reader subsampled level #%d (%dx%d) to %dx%d special image: %.3f ms%n",
+                resolutionLevel, dimX, dimY, sizeX, sizeY, (t2 - t1) * 1e-6);
+        }
+        final double[] scaleAndShift = !rawData && eightBitOutput ?
+            eightBitScaleAndShift(planeIndex, FormatTools.getBytesPerPixel(pixelType),
+                FormatTools.isFloatingPoint(pixelType), bitsPerPixel) :
+            null;
+        // - result is not a per-thread buffer: it is not damaged, if the statistics require reading
+        final PArray array = toArray(result, sizeX * sizeY, planeIndex,
+            pixelType, bitsPerPixel, interleaved, littleEndian, rawData, scaleAndShift);
+        return Matrices.matrix(array, bandCount, sizeX, sizeY);
+    }
+
+    // Returns interleaved pixels; if rawData, neither auto-contrast nor normalization are applied
+    private PArray readArray(
+        int resolutionLevel, int planeIndex, long fromX, long fromY, int sizeX, int sizeY, boolean rawData)
+    {
         try {
-            largeData.init();
             if (DEBUG_LEVEL >= 2) {
                 System.out.printf("Loci reading R%d: %d..%d x %d..%d%n",
-                    resolutionLevel, fromX, toX, fromY, toY);
-            }
-            setResolutionLevel(resolutionLevel);
-            final int pixelType = this.largeData.reader.getPixelType();
-            final int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
-            final int bitsPerPixel = this.largeData.reader.getBitsPerPixel();
-            byte[] bytes =
-                sizeX == 0 || sizeY == 0 ?
-                    new byte[0] : // avoiding possible exceptions while reading zero-size frame by Loci
-                    this.largeData.reader.openBytes(
-                        Math.min(imagePlaneIndex, Math.max(this.largeData.reader.getImageCount() - 1, 0)),
-                        (int) fromX, (int) fromY, sizeX, sizeY);
-            if (bytes.length != sizeX * sizeY * bandCount * bytesPerPixel) {
-                throw new AssertionError("Invalid usage of Loci API: "
-                    + "incorrect number of bytes in the returned array ("
-                    + bytes.length + " instead of " + sizeX * sizeY * bandCount * bytesPerPixel
-                    + "=" + sizeX + "*" + sizeY + "*" + bandCount + "*" + bytesPerPixel + ")");
-            }
-            if (!this.largeData.reader.isInterleaved() && bandCount > 1) {
-                final int bandSize = sizeX * sizeY * bytesPerPixel;
-                byte[] interleavedBytes = new byte[bandCount * bandSize];
-                if (bytesPerPixel == 1) { // optimization
-                    for (int i = 0, disp = 0; i < bandSize; i += bytesPerPixel) {
-                        for (int j = 0, bandDisp = 0; j < bandCount; j++, bandDisp += bandSize) {
-                            interleavedBytes[disp++] = bytes[i + bandDisp];
+                    resolutionLevel, fromX, fromX + sizeX, fromY, fromY + sizeY);
+            }
+            final double[] scaleAndShift = !rawData && eightBitOutput ?
+                eightBitScaleAndShift(resolutionLevel, planeIndex) :
+                null;
+            final IFormatReader reader = largeData.borrow();
+            final int pixelType;
+            final int bitsPerPixel;
+            final boolean interleaved;
+            final boolean littleEndian;
+            final int bytesPerPixel;
+            final byte[] bytes;
+            try {
+                setResolutionLevel(reader, resolutionLevel);
+                pixelType = reader.getPixelType();
+                bitsPerPixel = reader.getBitsPerPixel();
+                interleaved = reader.isInterleaved();
+                littleEndian = reader.isLittleEndian();
+                bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+                bytes = byteBuffer(sizeX * sizeY * bandCount * bytesPerPixel);
+                if (sizeX > 0 && sizeY > 0) { // avoiding possible exceptions while reading zero-size frame by Loci
+                    readBytes(reader, resolutionLevel,
+                        Math.min(planeIndex, Math.max(reader.getImageCount() - 1, 0)),
+                        (int) fromX, (int) fromY, sizeX, sizeY, bytes);
+                }
+            } finally {
+                largeData.giveBack(reader);
+            }
+            return toArray(bytes, sizeX * sizeY, planeIndex,
+                pixelType, bitsPerPixel, interleaved, littleEndian, rawData, scaleAndShift);
+        } catch (IOException e) {
+            throw new IOError(e);
+        } catch (FormatException e) {
+            throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
+        }
+    }
+
+    // Converts bytes in the format of openBytes into interleaved pixels;
+    // scaleAndShift, if not null, is the result of eightBitScaleAndShift for 8-bit output
+    private PArray toArray(
+        byte[] bytes, int numberOfPixels, int planeIndex,
+        int pixelType, int bitsPerPixel, boolean interleaved, boolean littleEndian, boolean rawData,
+        double[] scaleAndShift)
+    {
+        final int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        if (!rawData && scaleAndShift != null) {
+            if (bytesPerPixel > 1 || scaleAndShift[0] != 1.0 || scaleAndShift[1] != 0.0) {
+                return SimpleMemoryModel.asUpdatableByteArray(toInterleavedByteArray(
+                    bytes, numberOfPixels, bandCount,
+                    bytesPerPixel,
+                    FormatTools.isFloatingPoint(pixelType),
+                    littleEndian,
+                    interleaved || bandCount == 1,
+                    scaleAndShift[0], scaleAndShift[1]));
+            }
+        }
+        Object data = toInterleavedDataArray(bytes, numberOfPixels, bandCount,
+            bytesPerPixel,
+            FormatTools.isFloatingPoint(pixelType),
+            littleEndian,
+            interleaved || bandCount == 1);
+//        System.out.printf("%s%n",
+//            JArrays.toString(JArrays.copyOfRange(data, 0, Math.min(numberOfPixels, 20) * bandCount),
+//                java.util.Locale.US, "%x", ",", 5000));
+        PArray array = (PArray) SimpleMemoryModel.asUpdatableArray(data);
+        if (rawData) {
+            return array;
+        }
+        boolean autoContrast = autoContrastAlways || (autoContrastIfMoreThan8Bits && array.bitsPerElement() > 8);
+        if (autoContrast) {
+            // the same range for all tiles: no additional pass over the data and no seams between tiles
+            Range srcRange = intensityStatistics(planeIndex).totalRange();
+            if (srcRange.size() > 0.0) {
+                Range destRange = Range.valueOf(0.0, array.maxPossibleValue(1.0));
+                array = Arrays.asFuncArray(
+                    LinearFunc.getInstance(destRange, srcRange),
+                    array.type(), array);
+            }
+        } else if (normalizeFractionalNumberOfBytesPerPixel
+            && array instanceof PIntegerArray
+            && array.bitsPerElement() > bitsPerPixel)
+        {
+            long srcMax = (1L << bitsPerPixel) - 1;
+            long destMax = ((PIntegerArray) array).maxPossibleValue();
+            array = Arrays.asFuncArray(
+                LinearFunc.getInstance(0.0, (double) destMax / (double) srcMax),
+                array.type(), array);
+        }
+        return array;
+    }
+
+    private LociIntensityStatistics intensityStatistics(int planeIndex) {
+        LociIntensityStatistics result = intensityStatistics.get(planeIndex);
+        if (result != null) {
+            return result;
+        }
+        synchronized (intensityStatistics) {
+            result = intensityStatistics.get(planeIndex);
+            if (result != null) {
+                return result;
+            }
+            final String prefix = "statistics." + planeIndex + ".";
+            final Properties cached = metadataCache == null ? null : metadataCache.load();
+            if (cached != null && geometryKey.equals(cached.getProperty("geometryKey"))) {
+                result = LociIntensityStatistics.load(cached, prefix, bandCount);
+            }
+            if (result == null) {
+                result = calculateIntensityStatistics(planeIndex);
+                if (metadataCache != null) {
+                    final Properties properties = new Properties();
+                    properties.setProperty("geometryKey", geometryKey);
+                    result.store(properties, prefix);
+                    metadataCache.store(properties);
+                }
+            } else if (DEBUG_LEVEL >= 1) {
+                System.out.println("Loci reader restored intensity statistics of plane " + planeIndex
+                    + " from the cache: " + result.totalRange());
+            }
+            intensityStatistics.put(planeIndex, result);
+            return result;
+        }
+    }
+
+    // The coarsest level is read once, subsampled to MAX_SPECIAL_IMAGE_SIZE if it is larger:
+    // both ranges and histograms are calculated by the same array
+    private LociIntensityStatistics calculateIntensityStatistics(int planeIndex) {
+        final long t1 = System.nanoTime();
+        final int level = numberOfResolutions - 1;
+        final long[] dim = dimensions(level);
+        final long dimX = dim[DIM_WIDTH];
+        final long dimY = dim[DIM_HEIGHT];
+        final PArray array;
+        try {
+            array = readSubsampled(level, planeIndex, dimX, dimY, true).array();
+        } catch (IOException e) {
+            throw new IOError(e);
+        } catch (FormatException e) {
+            throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
+        }
+        final LociIntensityStatistics result = new LociIntensityStatistics(bandCount);
+        result.addToRanges(array);
+        result.addToHistograms(array);
+        final long t2 = System.nanoTime();
+        if (DEBUG_LEVEL >= 1) {
+            System.out.printf(java.util.Locale.US,
+                "Loci reader calculated intensity statistics of plane %d by level #%d (%dx%d): %s, %.3f ms%n",
+                planeIndex, level, dimX, dimY, result.totalRange(), (t2 - t1) * 1e-6);
+        }
+        return result;
+    }
+
+    // Returns true if the tiles of this level are read via the tile cache: they are native tiles,
+    // not too large "tiles" (strips or whole images of non-tiled formats).
+    // The reader must be already switched to the given resolution level.
+    private boolean isTileCachingUsed(IFormatReader reader, int resolutionLevel) {
+        if (!tileCaching || !LociTileCache.getInstance().isEnabled()) {
+            return false;
+        }
+        final int[] tileSize = nativeTileSize(reader, resolutionLevel);
+        final int pixelSize = bandCount * FormatTools.getBytesPerPixel(reader.getPixelType());
+        return tileSize[0] > 0 && tileSize[1] > 0
+            && (long) tileSize[0] * (long) tileSize[1] * (long) pixelSize <= MAX_CACHED_TILE_SIZE;
+    }
+
+    // The reader must be already switched to the given resolution level.
+    // The result has the same layout as the result of openBytes (interleaved or not);
+    // it is stored at the beginning of the passed array, which may be longer than necessary.
+    private void readBytes(
+        IFormatReader reader, int resolutionLevel, int plane,
+        int fromX, int fromY, int sizeX, int sizeY, byte[] result)
+        throws IOException, FormatException
+    {
+        if (!isTileCachingUsed(reader, resolutionLevel)) {
+            reader.openBytes(plane, result, fromX, fromY, sizeX, sizeY);
+            return;
+        }
+        final int[] tileSize = nativeTileSize(reader, resolutionLevel);
+        final int tileWidth = tileSize[0];
+        final int tileHeight = tileSize[1];
+        final int pixelSize = bandCount * FormatTools.getBytesPerPixel(reader.getPixelType());
+        final LociTileCache cache = LociTileCache.getInstance();
+        final String fileId = imageFile.getAbsolutePath() + ":" + imageFile.length() + ":" + imageFile.lastModified();
+        final String readerSettings = geometryKey + "/" + reader.hasFlattenedResolutions();
+        // - the format (reader class) and flattening resolutions: sources of the same file with other settings
+        // have other numbering of series and resolutions
+        final boolean interleaved = reader.isInterleaved();
+        final int numberOfPlanes = interleaved ? 1 : bandCount;
+        final int elementSize = interleaved ? pixelSize : pixelSize / bandCount;
+        // - for non-interleaved data, every band is stored as a separate plane
+        final int dimX = reader.getSizeX();
+        final int dimY = reader.getSizeY();
+        final int toX = fromX + sizeX;
+        final int toY = fromY + sizeY;
+        for (int tileY = fromY / tileHeight; tileY * tileHeight < toY; tileY++) {
+            final int tileFromY = tileY * tileHeight;
+            final int tileSizeY = Math.min(tileHeight, dimY - tileFromY);
+            for (int tileX = fromX / tileWidth; tileX * tileWidth < toX; tileX++) {
+                final int tileFromX = tileX * tileWidth;
+                final int tileSizeX = Math.min(tileWidth, dimX - tileFromX);
+                final LociTileCache.Key key = new LociTileCache.Key(
+                    fileId, readerSettings, selectedSeries, resolutionLevel, plane, tileX, tileY);
+                byte[] tile = cache.get(key);
+                if (tile == null) {
+                    tile = reader.openBytes(plane, tileFromX, tileFromY, tileSizeX, tileSizeY);
+                    cache.put(key, tile);
+                    if (DEBUG_LEVEL >= 3) {
+                        System.out.printf("Loci decoded tile %s; %s%n", key, cache);
+                    }
+                }
+                final int x1 = Math.max(fromX, tileFromX);
+                final int x2 = Math.min(toX, tileFromX + tileSizeX);
+                final int y1 = Math.max(fromY, tileFromY);
+                final int y2 = Math.min(toY, tileFromY + tileSizeY);
+                final int length = (x2 - x1) * elementSize;
+                for (int p = 0; p < numberOfPlanes; p++) {
+                    final int tileOffset = p * tileSizeX * tileSizeY * elementSize;
+                    final int resultOffset = p * sizeX * sizeY * elementSize;
+                    for (int y = y1; y < y2; y++) {
+                        System.arraycopy(
+                            tile, tileOffset + ((y - tileFromY) * tileSizeX + (x1 - tileFromX)) * elementSize,
+                            result, resultOffset + ((y - fromY) * sizeX + (x1 - fromX)) * elementSize,
+                            length);
+                    }
+                }
+            }
+        }
+    }
+
+    // Must be called before filling the per-thread buffer (and without borrowed readers): finding
+    // the intensity statistics for auto-contrast can read the image by the same thread
+    private double[] eightBitScaleAndShift(int resolutionLevel, int planeIndex)
+        throws IOException, FormatException
+    {
+        final IFormatReader reader = largeData.borrow();
+        final int pixelType;
+        final int bitsPerPixel;
+        try {
+            setResolutionLevel(reader, resolutionLevel);
+            pixelType = reader.getPixelType();
+            bitsPerPixel = reader.getBitsPerPixel();
+        } finally {
+            largeData.giveBack(reader);
+        }
+        return eightBitScaleAndShift(planeIndex,
+            FormatTools.getBytesPerPixel(pixelType), FormatTools.isFloatingPoint(pixelType), bitsPerPixel);
+    }
+
+    // Returns {a, b}: 8-bit output is a*v+b, rounded and clamped to 0..255; the same logic as
+    // auto-contrast and normalization in readArray, applied to the byte range
+    private double[] eightBitScaleAndShift(int planeIndex, int bytesPerPixel, boolean floatingPoint, int bitsPerPixel) {
+        final double maxPossibleValue = floatingPoint ? 1.0 : bytesPerPixel <= 2 ?
+            (double) ((1L << (8 * bytesPerPixel)) - 1) :
+            bytesPerPixel == 4 ? Integer.MAX_VALUE : Long.MAX_VALUE;
+        // - AlgART conventions: bytes and shorts are unsigned, ints and longs are signed
+        final boolean autoContrast = autoContrastAlways || (autoContrastIfMoreThan8Bits && bytesPerPixel > 1);
+        if (autoContrast) {
+            final Range srcRange = intensityStatistics(planeIndex).totalRange();
+            if (srcRange.size() > 0.0) {
+                final double scale = 255.0 / srcRange.size();
+                return new double[] {scale, -srcRange.min() * scale};
+            }
+        } else if (normalizeFractionalNumberOfBytesPerPixel
+            && !floatingPoint
+            && 8 * bytesPerPixel > bitsPerPixel)
+        {
+            return new double[] {255.0 / (double) ((1L << bitsPerPixel) - 1), 0.0};
+        }
+        return new double[] {255.0 / maxPossibleValue, 0.0};
+    }
+
+    // Like toInterleavedDataArray, but returns a*v+b for every element v, rounded and clamped to 0..255;
+    // 8- and 16-bit data are converted via a lookup table
+    private byte[] toInterleavedByteArray(
+        byte[] bytes, int numberOfPixels, int bandCount, int bytesPerPixel,
+        boolean floatingPoint, boolean littleEndian, boolean interleaved,
+        double a, double b)
+    {
+        final int n = numberOfPixels * bandCount;
+        final int numberOfPlanes = interleaved ? 1 : bandCount;
+        // - for interleaved data, the loops below are a simple copying loop for all elements
+        final ByteBuffer bb = ByteBuffer.wrap(bytes, 0, n * bytesPerPixel)
+            .order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        final byte[] result = new byte[n];
+        switch (bytesPerPixel) {
+            case 1: {
+                final byte[] table = lookupTable(a, b, 256);
+                for (int band = 0, src = 0; band < numberOfPlanes; band++) {
+                    for (int disp = band; disp < n; disp += numberOfPlanes) {
+                        result[disp] = table[bytes[src++] & 0xFF];
+                    }
+                }
+                break;
+            }
+            case 2: {
+                final byte[] table = lookupTable(a, b, 65536);
+                final ShortBuffer buffer = bb.asShortBuffer();
+                for (int band = 0, src = 0; band < numberOfPlanes; band++) {
+                    for (int disp = band; disp < n; disp += numberOfPlanes) {
+                        result[disp] = table[buffer.get(src++) & 0xFFFF];
+                    }
+                }
+                break;
+            }
+            case 4: {
+                final FloatBuffer floatBuffer = floatingPoint ? bb.asFloatBuffer() : null;
+                final IntBuffer intBuffer = floatingPoint ? null : bb.asIntBuffer();
+                for (int band = 0, src = 0; band < numberOfPlanes; band++) {
+                    for (int disp = band; disp < n; disp += numberOfPlanes, src++) {
+                        final double v = floatingPoint ? floatBuffer.get(src) : intBuffer.get(src);
+                        result[disp] = toByte(a * v + b);
+                    }
+                }
+                break;
+            }
+            case 8: {
+                final DoubleBuffer doubleBuffer = floatingPoint ? bb.asDoubleBuffer() : null;
+                final LongBuffer longBuffer = floatingPoint ? null : bb.asLongBuffer();
+                for (int band = 0, src = 0; band < numberOfPlanes; band++) {
+                    for (int disp = band; disp < n; disp += numberOfPlanes, src++) {
+                        final double v = floatingPoint ? doubleBuffer.get(src) : longBuffer.get(src);
+                        result[disp] = toByte(a * v + b);
+                    }
+                }
+                break;
+            }
+            default:
+                throw new UnsupportedOperationException("Unsupported number of bytes per pixel " + bytesPerPixel);
+        }
+        return result;
+    }
+
+    private byte[] lookupTable(double a, double b, int length) {
+        ByteLookupTable table = lastLookupTable;
+        if (table == null || table.a != a || table.b != b || table.values.length != length) {
+            table = new ByteLookupTable(a, b, length);
+            lastLookupTable = table; // usually all tiles use the same table
+        }
+        return table.values;
+    }
+
+    private static byte toByte(double v) {
+        // NaN is converted to 0
+        return (byte) (v >= 255.0 ? 255 : v > 0.0 ? (int) (v + 0.5) : 0);
+    }
+
+    // The result may be longer than necessary and contains garbage from previous readings
+    private static byte[] byteBuffer(int length) {
+        if (length > MAX_POOLED_BUFFER_SIZE) {
+            return new byte[length];
+        }
+        byte[] result = BYTE_BUFFERS.get();
+        if (result == null || result.length < length) {
+            result = new byte[Math.max(length, result == null ? 0 : Math.min(2 * result.length,
+                MAX_POOLED_BUFFER_SIZE))];
+            BYTE_BUFFERS.set(result);
+        }
+        return result;
+    }
+
+    // Converts Loci bytes into a new Java array with interleaved pixels in one pass, like DataTools.makeDataArray
+    // (byte[], short[], int[], long[], float[] or double[]); non-interleaved bytes contain bandCount
+    // separate planes. Only first numberOfPixels * bandCount * bytesPerPixel bytes are used.
+    static Object toInterleavedDataArray(
+        byte[] bytes, int numberOfPixels, int bandCount, int bytesPerPixel,
+        boolean floatingPoint, boolean littleEndian, boolean interleaved)
+    {
+        final int n = numberOfPixels * bandCount;
+        final ByteBuffer bb = ByteBuffer.wrap(bytes, 0, n * bytesPerPixel)
+            .order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        switch (bytesPerPixel) {
+            case 1: {
+                final byte[] result = new byte[n];
+                if (interleaved) {
+                    System.arraycopy(bytes, 0, result, 0, n);
+                } else {
+                    for (int band = 0, src = 0; band < bandCount; band++) {
+                        for (int disp = band; disp < n; disp += bandCount) {
+                            result[disp] = bytes[src++];
+                        }
+                    }
+                }
+                return result;
+            }
+            case 2: {
+                final short[] result = new short[n];
+                final ShortBuffer buffer = bb.asShortBuffer();
+                if (interleaved) {
+                    buffer.get(result);
+                } else {
+                    for (int band = 0, src = 0; band < bandCount; band++) {
+                        for (int disp = band; disp < n; disp += bandCount) {
+                            result[disp] = buffer.get(src++);
+                        }
+                    }
+                }
+                return result;
+            }
+            case 4: {
+                if (floatingPoint) {
+                    final float[] result = new float[n];
+                    final FloatBuffer buffer = bb.asFloatBuffer();
+                    if (interleaved) {
+                        buffer.get(result);
+                    } else {
+                        for (int band = 0, src = 0; band < bandCount; band++) {
+                            for (int disp = band; disp < n; disp += bandCount) {
+                                result[disp] = buffer.get(src++);
+                            }
                         }
                     }
+                    return result;
                 } else {
-                    for (int i = 0, disp = 0; i < bandSize; i += bytesPerPixel) {
-                        for (int j = 0, bandDisp = 0; j < bandCount; j++, bandDisp += bandSize) {
-                            for (int k = 0; k < bytesPerPixel; k++) {
-                                interleavedBytes[disp++] = bytes[i + bandDisp + k];
+                    final int[] result = new int[n];
+                    final IntBuffer buffer = bb.asIntBuffer();
+                    if (interleaved) {
+                        buffer.get(result);
+                    } else {
+                        for (int band = 0, src = 0; band < bandCount; band++) {
+                            for (int disp = band; disp < n; disp += bandCount) {
+                                result[disp] = buffer.get(src++);
                             }
                         }
                     }
+                    return result;
+                }
+            }
+            case 8: {
+                if (floatingPoint) {
+                    final double[] result = new double[n];
+                    final DoubleBuffer buffer = bb.asDoubleBuffer();
+                    if (interleaved) {
+                        buffer.get(result);
+                    } else {
+                        for (int band = 0, src = 0; band < bandCount; band++) {
+                            for (int disp = band; disp < n; disp += bandCount) {
+                                result[disp] = buffer.get(src++);
+                            }
+                        }
+                    }
+                    return result;
+                } else {
+                    final long[] result = new long[n];
+                    final LongBuffer buffer = bb.asLongBuffer();
+                    if (interleaved) {
+                        buffer.get(result);
+                    } else {
+                        for (int band = 0, src = 0; band < bandCount; band++) {
+                            for (int disp = band; disp < n; disp += bandCount) {
+                                result[disp] = buffer.get(src++);
+                            }
+                        }
+                    }
+                    return result;
                 }
-                bytes = interleavedBytes;
-            }
-            Object data = DataTools.makeDataArray(bytes,
-                bytesPerPixel,
-                FormatTools.isFloatingPoint(pixelType),
-                this.largeData.reader.isLittleEndian());
-//            for (int k = 0; k < Math.min(sizeY, 20); k++) {
-//                System.out.printf("%d: %s%n", k,
-//                    JArrays.toString(JArrays.copyOfRange(data, k * sizeX * bandCount, (k + 1) * sizeX * bandCount),
-//                        java.util.Locale.US, "%x", ",", 5000));
-//            }
-            PArray array = (PArray) SimpleMemoryModel.asUpdatableArray(data);
-            boolean autoContrast = autoContrastAlways || (autoContrastIfMoreThan8Bits && array.bitsPerElement() > 8);
-            if (autoContrast) {
-                Range srcRange = Arrays.rangeOf(array);
-                if (srcRange.size() > 0.0) {
-                    Range destRange = Range.valueOf(0.0, array.maxPossibleValue(1.0));
-                    array = Arrays.asFuncArray(
-                        LinearFunc.getInstance(destRange, srcRange),
-                        array.type(), array);
-                }
-            } else if (normalizeFractionalNumberOfBytesPerPixel
-                && array instanceof PIntegerArray
-                && array.bitsPerElement() > bitsPerPixel)
-            {
-                long srcMax = (1L << bitsPerPixel) - 1;
-                long destMax = ((PIntegerArray) array).maxPossibleValue();
-                array = Arrays.asFuncArray(
-                    LinearFunc.getInstance(0.0, (double) destMax / (double) srcMax),
-                    array.type(), array);
             }
-            return Matrices.matrix(array, bandCount, sizeX, sizeY);
+            default:
+                throw new UnsupportedOperationException("Unsupported number of bytes per pixel " + bytesPerPixel);
+        }
+    }
+
+    private int[] nativeTileSize(int resolutionLevel) {
+        final int[] result = nativeTileSizes.get(resolutionLevel);
+        if (result != null) {
+            return result;
+        }
+        try {
+            final IFormatReader reader = largeData.borrow();
+            try {
+                setResolutionLevel(reader, resolutionLevel);
+                return nativeTileSize(reader, resolutionLevel);
+            } finally {
+                largeData.giveBack(reader);
+            }
         } catch (IOException e) {
             throw new IOError(e);
         } catch (FormatException e) {
             throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
-        } finally {
-            largeData.lock.unlock();
         }
     }
 
+    // The reader must be already switched to the given resolution level
+    private int[] nativeTileSize(IFormatReader reader, int resolutionLevel) {
+        int[] result = nativeTileSizes.get(resolutionLevel);
+        if (result == null) {
+            result = new int[] {reader.getOptimalTileWidth(), reader.getOptimalTileHeight()};
+            nativeTileSizes.put(resolutionLevel, result);
+            if (DEBUG_LEVEL >= 1) {
+                System.out.printf("Loci reader native tiles at level #%d: %dx%d%n",
+                    resolutionLevel, result[0], result[1]);
+            }
+        }
+        return result;
+    }
+
     private IFormatReader createReader() {
         IFormatReader reader = tryToCreateReader();
         return reader != null ? reader : new ImageReader();
@@ -466,8 +1738,29 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         return null;
     }
 
-    private void setResolutionLevel(int resolutionLevel) {
-        largeData.reader.setResolution(resolutionLevel); // better way, requiring flattenedResolutions=false
+    private static boolean isValidCachedGeometry(Properties geometry, String geometryKey) {
+        if (geometry == null || !geometryKey.equals(geometry.getProperty("geometryKey"))) {
+            return false;
+        }
+        try {
+            Integer.parseInt(geometry.getProperty("selectedSeries"));
+            Integer.parseInt(geometry.getProperty("bandCount"));
+            Integer.parseInt(geometry.getProperty("compression"));
+            final int numberOfResolutions = Integer.parseInt(geometry.getProperty("numberOfResolutions"));
+            for (int k = 0; k < numberOfResolutions; k++) {
+                Long.parseLong(geometry.getProperty("level." + k + ".dimX"));
+                Long.parseLong(geometry.getProperty("level." + k + ".dimY"));
+            }
+            return numberOfResolutions > 0;
+        } catch (NumberFormatException e) {
+            return false; // including null values
+        }
+    }
+
+    private static void setResolutionLevel(IFormatReader reader, int resolutionLevel) {
+        if (reader.getResolution() != resolutionLevel) {
+            reader.setResolution(resolutionLevel); // better way, requiring flattenedResolutions=false
+        }
     }
 
     private static void printReaderInfo(IFormatReader reader) {
@@ -522,6 +1815,21 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
         reader.setSeries(originalSeries);
     }
 
+    private static class ByteLookupTable {
+        private final double a;
+        private final double b;
+        private final byte[] values;
+
+        private ByteLookupTable(double a, double b, int length) {
+            this.a = a;
+            this.b = b;
+            this.values = new byte[length];
+            for (int k = 0; k < length; k++) {
+                values[k] = toByte(a * k + b);
+            }
+        }
+    }
+
     // Important! PlanePyramidSource objects are often cloned, usually before every reading data,
     // because this class extends AbstractArrayProcessorWithContextSwitching. It can lead to serious problems.
     // 1) If we shall implement finalize() method in that class, it will be often called in clones also,
@@ -530,9 +1838,16 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
     // since that time, in this (disposed) state; so all clones will work normally, but very slowly:
     // the files will be reopened every time when PlanePyramid needs to read data and creates a clone for this.
     // LargeDataHolder class resolves all these problems, because the reference to it is shared among all clones.
+    //
+    // The reader field is the first reader of the pool: it is used for reading metadata.
+    // Reading pixels is performed by readers, borrowed from the pool, without global synchronization.
     private class LargeDataHolder {
         private volatile IFormatReader reader = null;
+        private volatile LociReaderPool pool = null;
         private final Lock lock = new ReentrantLock();
+        private final Map<IFormatReader, LociReaderPool> lenders = new IdentityHashMap<IFormatReader, LociReaderPool>();
+        // - the pool of every borrowed reader: after freeResources() and reopening, there are several pools
+        private ThreadPoolExecutor planeReader = null; // created when necessary
 
         private void init() throws IOException, FormatException {
             lock.lock();
@@ -541,12 +1856,131 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
                     if (DEBUG_LEVEL >= 1) {
                         System.out.println("Loci reader initializing " + this);
                     }
-                    this.reader = createReader();
-                    if (flattenedResolutions != null) {
-                        this.reader.setFlattenedResolutions(flattenedResolutions);
+                    this.reader = newReader();
+                    this.pool = new LociReaderPool(new LociReaderPool.ReaderFactory() {
+                        @Override
+                        public IFormatReader newReader() throws IOException, FormatException {
+                            return LargeDataHolder.this.newReader();
+                        }
+                    }, maxNumberOfReaders, readerPoolIdleTimeout);
+                    this.pool.addFirstReader(this.reader);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private IFormatReader newReader() throws IOException, FormatException {
+            IFormatReader result = createReader();
+            if (metadataCache != null) {
+                result = metadataCache.memoizer(result);
+            }
+            if (flattenedResolutions != null) {
+                result.setFlattenedResolutions(flattenedResolutions);
+            }
+            result.setId(imageFile.getAbsolutePath());
+            result.setSeries(selectedSeries);
+            return result;
+        }
+
+        private LociReaderPool pool() throws IOException, FormatException {
+            lock.lock();
+            try {
+                init();
+                return pool;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The returned reader must be returned by giveBack. If freeResources() closes the pool in another thread
+        // while borrowing, the file is reopened, as in the case of reading after freeResources().
+        private IFormatReader borrow() throws IOException, FormatException {
+            for (int attempt = 1; ; attempt++) {
+                final LociReaderPool pool = pool();
+                try {
+                    return lend(pool, pool.borrow());
+                } catch (LociReaderPool.ClosedException e) {
+                    if (attempt >= 2) {
+                        throw e;
                     }
-                    this.reader.setId(imageFile.getAbsolutePath());
-                    this.reader.setSeries(selectedSeries);
+                }
+            }
+        }
+
+        // Returns null if the resources are not loaded, freed or being freed: the file is not reopened
+        private IFormatReader borrowExisting() throws IOException, FormatException {
+            final LociReaderPool pool = existingPool();
+            if (pool == null) {
+                return null;
+            }
+            try {
+                return lend(pool, pool.borrow());
+            } catch (LociReaderPool.ClosedException e) {
+                return null;
+            }
+        }
+
+        // Returns the reader to the pool, from which it was borrowed (maybe already closed)
+        private void giveBack(IFormatReader reader) {
+            final LociReaderPool pool;
+            synchronized (lenders) {
+                pool = lenders.remove(reader);
+            }
+            if (pool == null) {
+                throw new IllegalStateException("The reader was not borrowed: " + reader);
+            }
+            pool.giveBack(reader);
+        }
+
+        private IFormatReader lend(LociReaderPool pool, IFormatReader reader) {
+            synchronized (lenders) {
+                lenders.put(reader, pool);
+            }
+            return reader;
+        }
+
+        // Returns null if the resources are not loaded or freed
+        private LociReaderPool existingPool() {
+            lock.lock();
+            try {
+                return pool;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Executor of readSubMatrices: no more threads than readers in the pool
+        private ExecutorService planeReader() {
+            lock.lock();
+            try {
+                if (planeReader == null) {
+                    planeReader = new ThreadPoolExecutor(maxNumberOfReaders, maxNumberOfReaders,
+                        10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), PLANE_READER_THREADS);
+                    planeReader.allowCoreThreadTimeOut(true);
+                }
+                return planeReader;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void reconfigurePool() {
+            lock.lock();
+            try {
+                if (pool != null) {
+                    pool.setMaxNumberOfReaders(maxNumberOfReaders);
+                    pool.setIdleTimeout(readerPoolIdleTimeout);
+                }
+                if (planeReader != null) {
+                    if (maxNumberOfReaders > planeReader.getMaximumPoolSize()) {
+                        planeReader.setMaximumPoolSize(maxNumberOfReaders);
+                        planeReader.setCorePoolSize(maxNumberOfReaders);
+                    } else {
+                        planeReader.setCorePoolSize(maxNumberOfReaders);
+                        planeReader.setMaximumPoolSize(maxNumberOfReaders);
+                    }
+                    // - the core size must not exceed the maximum size at any moment
                 }
             } finally {
                 lock.unlock();
@@ -561,11 +1995,8 @@ public final class LociPlanePyramidSource extends AbstractArrayProcessorWithCont
                     if (DEBUG_LEVEL >= 1) {
                         System.out.println("Loci reader disposing " + this);
                     }
-                    try {
-                        reader.close(false);
-                    } catch (IOException e) {
-                        LOGGER.log(Level.SEVERE, "Cannot close Loci reader", e);
-                    }
+                    pool.close(); // closes the first reader also, maybe later (if it is used now)
+                    pool = null;
                     reader = null;
                 }
             } finally {
@@ -0,0 +1,295 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.simagis.pyramid.loci;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Pool of independently initialized Loci readers of the same file: every reader is used by one thread at a time.
+// The pool does not change the state of readers, so every reader keeps its current series and resolution
+// between usages: LociPlanePyramidSource pins them to one series, LociSeriesMosaicPlanePyramidSource
+// switches them when necessary.
+// Extra readers, idle for more than idleTimeout, are closed; the first reader is kept until close().
+// After close(), borrow() throws ClosedException (also in threads, waiting for a reader), and readers,
+// which were borrowed or being created at the moment of closing, are closed by giveBack.
+final class LociReaderPool {
+    interface ReaderFactory {
+        IFormatReader newReader() throws IOException, FormatException;
+    }
+
+    // The owner of the pool can create new pool (reopen the file) and repeat borrowing
+    static final class ClosedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        private ClosedException() {
+            super("Loci reader pool is already closed");
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LociReaderPool.class.getName());
+
+    private static final ScheduledExecutorService SHRINKER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread result = new Thread(r, "LociReaderPool shrinker");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+
+    private final ReaderFactory factory;
+    private volatile int maxNumberOfReaders;
+    private volatile long idleTimeout; // ms
+    private final Lock lock = new ReentrantLock();
+    private final Condition readerReturned = lock.newCondition();
+    private final Deque<IFormatReader> idleReaders = new ArrayDeque<IFormatReader>();
+    private final Map<IFormatReader, Long> lastUsage = new IdentityHashMap<IFormatReader, Long>();
+    private final Set<IFormatReader> poolReaders = Collections.newSetFromMap(
+        new IdentityHashMap<IFormatReader, Boolean>());
+    private IFormatReader firstReader = null;
+    private int numberOfReadersBeingCreated = 0;
+    private boolean shrinkingScheduled = false;
+    private boolean closed = false;
+
+    LociReaderPool(ReaderFactory factory, int maxNumberOfReaders, long idleTimeout) {
+        if (factory == null) {
+            throw new NullPointerException("Null reader factory");
+        }
+        if (maxNumberOfReaders <= 0) {
+            throw new IllegalArgumentException("Zero or negative maximal number of readers");
+        }
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("Negative idle timeout");
+        }
+        this.factory = factory;
+        this.maxNumberOfReaders = maxNumberOfReaders;
+        this.idleTimeout = idleTimeout;
+    }
+
+    void setMaxNumberOfReaders(int maxNumberOfReaders) {
+        if (maxNumberOfReaders <= 0) {
+            throw new IllegalArgumentException("Zero or negative maximal number of readers");
+        }
+        lock.lock();
+        try {
+            this.maxNumberOfReaders = maxNumberOfReaders;
+            readerReturned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("Negative idle timeout");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    // Adds the reader, created by the caller (usually while reading metadata), as the first reader of the pool
+    void addFirstReader(IFormatReader reader) {
+        lock.lock();
+        try {
+            if (!closed) {
+                poolReaders.add(reader);
+                idleReaders.push(reader);
+                lastUsage.put(reader, System.currentTimeMillis());
+                if (firstReader == null) {
+                    firstReader = reader;
+                }
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        closeReader(reader);
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return poolReaders.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The returned reader must be returned by giveBack
+    IFormatReader borrow() throws IOException, FormatException {
+        lock.lock();
+        try {
+            checkClosed();
+            while (idleReaders.isEmpty() && poolReaders.size() + numberOfReadersBeingCreated >= maxNumberOfReaders) {
+                readerReturned.awaitUninterruptibly();
+                checkClosed();
+            }
+            if (!idleReaders.isEmpty()) {
+                return idleReaders.pop();
+                // - LIFO: the most recently used reader has the hottest caches
+            }
+            numberOfReadersBeingCreated++;
+        } finally {
+            lock.unlock();
+        }
+        // creating new reader (usually, long-time setId) without locking other threads
+        IFormatReader result = null;
+        try {
+            result = factory.newReader();
+        } finally {
+            lock.lock();
+            try {
+                numberOfReadersBeingCreated--;
+                if (result != null && !closed) {
+                    poolReaders.add(result);
+                    if (firstReader == null) {
+                        firstReader = result;
+                    }
+                } else if (result == null) {
+                    readerReturned.signal();
+                }
+                // - if the pool was closed while creating, the reader is not added: giveBack will close it
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (LociPlanePyramidSource.DEBUG_LEVEL >= 1) {
+            System.out.println("Loci reader pool created new reader #" + size() + " " + result);
+        }
+        return result;
+    }
+
+    void giveBack(IFormatReader reader) {
+        boolean closeIt = false;
+        lock.lock();
+        try {
+            if (poolReaders.contains(reader)) {
+                idleReaders.push(reader);
+                lastUsage.put(reader, System.currentTimeMillis());
+                scheduleShrinking();
+                readerReturned.signal();
+            } else {
+                closeIt = true; // the pool was closed while the reader was borrowed or being created
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (closeIt) {
+            closeReader(reader);
+        }
+    }
+
+    // Closes all idle readers; borrowed readers will be closed when returned
+    void close() {
+        final List<IFormatReader> readersToClose;
+        lock.lock();
+        try {
+            closed = true;
+            readersToClose = new ArrayList<IFormatReader>(idleReaders);
+            idleReaders.clear();
+            lastUsage.clear();
+            poolReaders.clear();
+            firstReader = null;
+            readerReturned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (IFormatReader reader : readersToClose) {
+            closeReader(reader);
+        }
+    }
+
+    private void shrink() {
+        final List<IFormatReader> readersToClose = new ArrayList<IFormatReader>();
+        lock.lock();
+        try {
+            shrinkingScheduled = false;
+            final long now = System.currentTimeMillis();
+            for (Iterator<IFormatReader> iterator = idleReaders.iterator(); iterator.hasNext(); ) {
+                final IFormatReader reader = iterator.next();
+                final Long usage = lastUsage.get(reader);
+                if (reader != firstReader && usage != null && now - usage >= idleTimeout) {
+                    iterator.remove();
+                    lastUsage.remove(reader);
+                    poolReaders.remove(reader);
+                    readersToClose.add(reader);
+                }
+            }
+            scheduleShrinking();
+        } finally {
+            lock.unlock();
+        }
+        for (IFormatReader reader : readersToClose) {
+            if (LociPlanePyramidSource.DEBUG_LEVEL >= 1) {
+                System.out.println("Loci reader pool closes idle reader " + reader);
+            }
+            closeReader(reader);
+        }
+    }
+
+    // must be called under the lock
+    private void checkClosed() {
+        if (closed) {
+            throw new ClosedException();
+        }
+    }
+
+    // must be called under the lock
+    private void scheduleShrinking() {
+        boolean hasExtraIdleReaders = false;
+        for (IFormatReader reader : idleReaders) {
+            hasExtraIdleReaders |= reader != firstReader;
+        }
+        if (!shrinkingScheduled && hasExtraIdleReaders) {
+            shrinkingScheduled = true;
+            SHRINKER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    shrink();
+                }
+            }, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void closeReader(IFormatReader reader) {
+        try {
+            reader.close(false);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Cannot close Loci reader", e);
+        }
+    }
+}
@@ -0,0 +1,716 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.simagis.pyramid.loci;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import net.algart.arrays.*;
+import net.algart.math.IPoint;
+import net.algart.math.IRectangularArea;
+import net.algart.math.functions.LinearFunc;
+import net.algart.simagis.pyramid.PlanePyramidSource;
+import net.algart.simagis.pyramid.PlanePyramidTools;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// All non-thumbnail series of a Bio-Formats file (wells of a plate, scenes of a slide), laid out
+// in a grid on one virtual plane. The file is parsed once; series are read by a shared pool of readers,
+// switched to the necessary series and resolution for every reading. Per-series resolutions
+// are detected lazily. Coarse levels of the mosaic are built from the nearest native resolution
+// of every series or, if it is coarse enough, from the Bio-Formats thumbnail of the series.
+// All series must have the same pixel type and number of RGB channels.
+public final class LociSeriesMosaicPlanePyramidSource extends AbstractArrayProcessorWithContextSwitching
+    implements PlanePyramidSource, ArrayProcessorWithContextSwitching
+{
+    private static final int MOSAIC_COMPRESSION = 2;
+    private static final int MAX_COARSEST_LEVEL_SIZE = 1024;
+    private static final double LEVEL_DOWNSAMPLE_TOLERANCE = 0.01;
+
+    private final File imageFile;
+    private final LociMetadataCache metadataCache; // null if disabled
+    private final List<SeriesInfo> seriesInfos;
+    private final int columnCount;
+    private final long cellSizeX;
+    private final long cellSizeY;
+    private final int numberOfResolutions;
+    private final int bandCount;
+    private final int pixelType;
+    private final int bitsPerPixel;
+    private final boolean littleEndian;
+    private final long dimX;
+    private final long dimY;
+    private final Map<String, Thumbnail> thumbnails = new ConcurrentHashMap<String, Thumbnail>();
+    // - "series/plane" -> thumbnail
+    private final LargeDataHolder largeData = new LargeDataHolder();
+
+    private volatile boolean normalizeFractionalNumberOfBytesPerPixel = true;
+    private volatile int imagePlaneIndex = 0;
+    private volatile int maxNumberOfReaders = 1;
+    private volatile long readerPoolIdleTimeout = 60000;
+
+    public LociSeriesMosaicPlanePyramidSource(ArrayContext context, File imageFile)
+        throws IOException, FormatException
+    {
+        this(context, imageFile, null);
+    }
+
+    // metadataCacheDirectory, if not null, is used to store Bio-Formats memo files
+    public LociSeriesMosaicPlanePyramidSource(ArrayContext context, File imageFile, File metadataCacheDirectory)
+        throws IOException, FormatException
+    {
+        super(context);
+        if (imageFile == null) {
+            throw new NullPointerException("Null imageFile");
+        }
+        this.imageFile = imageFile;
+        this.metadataCache = metadataCacheDirectory == null ? null :
+            new LociMetadataCache(metadataCacheDirectory, imageFile);
+        this.largeData.init();
+        boolean success = false;
+        try {
+            final IFormatReader reader = largeData.reader;
+            final List<SeriesInfo> seriesInfos = new ArrayList<SeriesInfo>();
+            long maxSizeX = 1;
+            long maxSizeY = 1;
+            int bandCount = -1;
+            int pixelType = -1;
+            int bitsPerPixel = -1;
+            boolean littleEndian = false;
+            for (int series = 0, n = reader.getSeriesCount(); series < n; series++) {
+                reader.setSeries(series);
+                if (reader.isThumbnailSeries()) {
+                    continue;
+                }
+                if (bandCount == -1) {
+                    bandCount = reader.getRGBChannelCount();
+                    pixelType = reader.getPixelType();
+                    bitsPerPixel = reader.getBitsPerPixel();
+                    littleEndian = reader.isLittleEndian();
+                } else if (reader.getRGBChannelCount() != bandCount
+                    || reader.getPixelType() != pixelType
+                    || reader.getBitsPerPixel() != bitsPerPixel
+                    || reader.isLittleEndian() != littleEndian)
+                {
+                    // - different bits per pixel would require different normalization of every series
+                    throw new FormatException("Series " + series + " of " + imageFile + " has another pixel type, "
+                        + "bits per pixel, number of channels or byte order than other series: cannot build a mosaic");
+                }
+                final SeriesInfo info = new SeriesInfo(series, reader.getSizeX(), reader.getSizeY());
+                seriesInfos.add(info);
+                maxSizeX = Math.max(maxSizeX, info.sizeX);
+                maxSizeY = Math.max(maxSizeY, info.sizeY);
+            }
+            if (seriesInfos.isEmpty()) {
+                throw new FormatException("No non-thumbnail series in " + imageFile);
+            }
+            reader.setSeries(seriesInfos.get(0).series);
+            this.seriesInfos = Collections.unmodifiableList(seriesInfos);
+            this.bandCount = bandCount;
+            this.pixelType = pixelType;
+            this.bitsPerPixel = bitsPerPixel;
+            this.littleEndian = littleEndian;
+            this.columnCount = (int) Math.ceil(Math.sqrt(seriesInfos.size()));
+            final int rowCount = (seriesInfos.size() + columnCount - 1) / columnCount;
+            // a small gap between cells; cells are aligned so that every series starts at integer position
+            // at all levels
+            int numberOfResolutions = 1;
+            while (Math.max(columnCount * maxSizeX, rowCount * maxSizeY) >> (numberOfResolutions - 1)
+                > MAX_COARSEST_LEVEL_SIZE)
+            {
+                numberOfResolutions++;
+            }
+            this.numberOfResolutions = numberOfResolutions;
+            final long alignment = 1L << (numberOfResolutions - 1);
+            this.cellSizeX = (maxSizeX + maxSizeX / 16 + alignment - 1) / alignment * alignment;
+            this.cellSizeY = (maxSizeY + maxSizeY / 16 + alignment - 1) / alignment * alignment;
+            this.dimX = columnCount * cellSizeX;
+            this.dimY = rowCount * cellSizeY;
+            if (DEBUG_LEVEL >= 1) {
+                System.out.printf("Loci mosaic of %s: %d series, %d columns, %dx%d cells, %dx%d pixels, "
+                        + "%d layers%n",
+                    imageFile, seriesInfos.size(), columnCount, cellSizeX, cellSizeY, dimX, dimY,
+                    numberOfResolutions);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                largeData.freeResources();
+            }
+        }
+    }
+
+    public int getSeriesCount() {
+        return seriesInfos.size();
+    }
+
+    // Index of the Bio-Formats series, shown in the given cell of the mosaic
+    public int getSeries(int cellIndex) {
+        return seriesInfos.get(cellIndex).series;
+    }
+
+    // Position of the given cell at the zero level
+    public IRectangularArea getSeriesRectangle(int cellIndex) {
+        final SeriesInfo info = seriesInfos.get(cellIndex);
+        final long x = (cellIndex % columnCount) * cellSizeX;
+        final long y = (cellIndex / columnCount) * cellSizeY;
+        return IRectangularArea.valueOf(IPoint.valueOf(x, y), IPoint.valueOf(x + info.sizeX - 1, y + info.sizeY - 1));
+    }
+
+    public boolean isNormalizeFractionalNumberOfBytesPerPixel() {
+        return normalizeFractionalNumberOfBytesPerPixel;
+    }
+
+    public void setNormalizeFractionalNumberOfBytesPerPixel(boolean normalizeFractionalNumberOfBytesPerPixel) {
+        this.normalizeFractionalNumberOfBytesPerPixel = normalizeFractionalNumberOfBytesPerPixel;
+    }
+
+    public int getImagePlaneIndex() {
+        return imagePlaneIndex;
+    }
+
+    // The same plane index is used in all series
+    public void setImagePlaneIndex(int imagePlaneIndex) {
+        if (imagePlaneIndex < 0) {
+            throw new IllegalArgumentException("Negative image plane index");
+        }
+        this.imagePlaneIndex = imagePlaneIndex;
+    }
+
+    public int getMaxNumberOfReaders() {
+        return maxNumberOfReaders;
+    }
+
+    public void setMaxNumberOfReaders(int maxNumberOfReaders) {
+        if (maxNumberOfReaders <= 0) {
+            throw new IllegalArgumentException("Zero or negative maximal number of readers");
+        }
+        this.maxNumberOfReaders = maxNumberOfReaders;
+        largeData.reconfigurePool();
+    }
+
+    public long getReaderPoolIdleTimeout() {
+        return readerPoolIdleTimeout;
+    }
+
+    public void setReaderPoolIdleTimeout(long readerPoolIdleTimeout) {
+        if (readerPoolIdleTimeout < 0) {
+            throw new IllegalArgumentException("Negative reader pool idle timeout");
+        }
+        this.readerPoolIdleTimeout = readerPoolIdleTimeout;
+        largeData.reconfigurePool();
+    }
+
+    public int numberOfResolutions() {
+        return numberOfResolutions;
+    }
+
+    public int compression() {
+        return MOSAIC_COMPRESSION;
+    }
+
+    public int bandCount() {
+        return bandCount;
+    }
+
+    public boolean isResolutionLevelAvailable(int resolutionLevel) {
+        return true;
+    }
+
+    public boolean[] getResolutionLevelsAvailability() {
+        boolean[] result = new boolean[numberOfResolutions()];
+        JArrays.fillBooleanArray(result, true);
+        return result;
+    }
+
+    public long[] dimensions(int resolutionLevel) {
+        if (resolutionLevel < 0 || resolutionLevel >= numberOfResolutions) {
+            throw new NoSuchElementException("No resolution level #" + resolutionLevel);
+        }
+        return new long[] {bandCount, dimX >> resolutionLevel, dimY >> resolutionLevel};
+    }
+
+    public boolean isElementTypeSupported() {
+        return false;
+    }
+
+    public Class<?> elementType() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("elementType() method is not supported by "
+            + super.getClass()); // avoiding IDEA bug
+    }
+
+    public boolean isDataReady() {
+        return true;
+    }
+
+    public void loadResources() {
+        try {
+            largeData.init();
+        } catch (IOException e) {
+            throw new IOError(e);
+        } catch (FormatException e) {
+            throw new IOError(e);
+        }
+    }
+
+    public void freeResources(FlushMethod flushMethod) {
+        largeData.freeResources();
+    }
+
+    public String additionalMetadata() {
+        return null;
+    }
+
+    public boolean isFullMatrixSupported() {
+        return context() != null;
+    }
+
+    public Matrix<? extends PArray> readFullMatrix(int resolutionLevel)
+        throws NoSuchElementException, NotYetConnectedException, UnsupportedOperationException
+    {
+        if (context() == null) {
+            throw new UnsupportedOperationException("readFullMatrix method must not be used " +
+                "when the context is not specified");
+        }
+        final long[] dimensions = dimensions(resolutionLevel);
+        return readSubMatrix(resolutionLevel, 0, 0, dimensions[DIM_WIDTH], dimensions[DIM_HEIGHT]);
+    }
+
+    public boolean isSpecialMatrixSupported(SpecialImageKind kind) {
+        return kind == SpecialImageKind.WHOLE_SLIDE;
+    }
+
+    // The whole slide image is the coarsest level: it is built from thumbnails and small resolutions
+    // of the series; other special images do not exist (null is returned)
+    public Matrix<? extends PArray> readSpecialMatrix(SpecialImageKind kind) throws NotYetConnectedException {
+        if (kind == null) {
+            throw new NullPointerException("Null image kind");
+        }
+        if (!isSpecialMatrixSupported(kind)) {
+            return null;
+        }
+        int resolutionLevel = numberOfResolutions() - 1;
+        final long[] dimensions = dimensions(resolutionLevel);
+        return readSubMatrix(resolutionLevel, 0, 0, dimensions[DIM_WIDTH], dimensions[DIM_HEIGHT]);
+    }
+
+    // Rectangles of all series
+    public List<IRectangularArea> zeroLevelActualRectangles() {
+        final List<IRectangularArea> result = new ArrayList<IRectangularArea>();
+        for (int k = 0, n = seriesInfos.size(); k < n; k++) {
+            result.add(getSeriesRectangle(k));
+        }
+        return result;
+    }
+
+    public List<List<List<IPoint>>> zeroLevelActualAreaBoundaries() {
+        return null;
+    }
+
+    @Override
+    public Matrix<? extends PArray> readSubMatrix(
+        int resolutionLevel, long fromX, long fromY, long toX, long toY)
+    {
+        final long[] dim = dimensions(resolutionLevel);
+        final long dimX = dim[DIM_WIDTH];
+        final long dimY = dim[DIM_HEIGHT];
+
+        if (fromX < 0 || fromY < 0 || fromX > toX || fromY > toY || toX > dimX || toY > dimY) {
+            throw new IndexOutOfBoundsException("Illegal fromX/fromY/toX/toY: must be in ranges 0.."
+                + dimX + ", 0.." + dimY + ", fromX<=toX, fromY<=toY");
+        }
+        if (toX - fromX > Integer.MAX_VALUE || toY - fromY > Integer.MAX_VALUE ||
+            (toX - fromX) * (toY - fromY) >= Integer.MAX_VALUE / bandCount / 8)
+        {
+            throw new IllegalArgumentException("Too large rectangle " + (toX - fromX) + "x" + (toY - fromY));
+        }
+        final int sizeX = (int) (toX - fromX);
+        final int sizeY = (int) (toY - fromY);
+        final int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        final int pixelSize = bandCount * bytesPerPixel;
+        final byte[] bytes = new byte[sizeX * sizeY * pixelSize];
+        // - interleaved pixels; the space between series stays zero
+        final long levelCellSizeX = cellSizeX >> resolutionLevel;
+        final long levelCellSizeY = cellSizeY >> resolutionLevel;
+        final int planeIndex = imagePlaneIndex;
+        try {
+            for (int k = 0, n = seriesInfos.size(); k < n; k++) {
+                final SeriesInfo info = seriesInfos.get(k);
+                final long cellX = (k % columnCount) * levelCellSizeX;
+                final long cellY = (k / columnCount) * levelCellSizeY;
+                final long levelSizeX = info.sizeX >> resolutionLevel;
+                final long levelSizeY = info.sizeY >> resolutionLevel;
+                final long x1 = Math.max(fromX, cellX);
+                final long y1 = Math.max(fromY, cellY);
+                final long x2 = Math.min(toX, cellX + levelSizeX);
+                final long y2 = Math.min(toY, cellY + levelSizeY);
+                if (x1 >= x2 || y1 >= y2) {
+                    continue;
+                }
+                readSeries(info, planeIndex, resolutionLevel,
+                    x1 - cellX, y1 - cellY, x2 - cellX, y2 - cellY,
+                    bytes, (int) ((y1 - fromY) * sizeX + (x1 - fromX)), sizeX);
+            }
+        } catch (IOException e) {
+            throw new IOError(e);
+        } catch (FormatException e) {
+            throw new IOError(PlanePyramidTools.rmiSafeWrapper(e));
+        }
+        PArray array = (PArray) SimpleMemoryModel.asUpdatableArray(
+            LociPlanePyramidSource.toInterleavedDataArray(bytes, sizeX * sizeY, bandCount, bytesPerPixel,
+                FormatTools.isFloatingPoint(pixelType), littleEndian, true));
+        if (normalizeFractionalNumberOfBytesPerPixel
+            && array instanceof PIntegerArray
+            && array.bitsPerElement() > bitsPerPixel)
+        {
+            long srcMax = (1L << bitsPerPixel) - 1;
+            long destMax = ((PIntegerArray) array).maxPossibleValue();
+            array = Arrays.asFuncArray(
+                LinearFunc.getInstance(0.0, (double) destMax / (double) srcMax),
+                array.type(), array);
+        }
+        return Matrices.matrix(array, bandCount, sizeX, sizeY);
+    }
+
+    // Copies the rectangle fromX..toX-1, fromY..toY-1 of the series at the given mosaic level
+    // into result (interleaved pixels, starting from resultOffset pixel, resultLineLength pixels per line)
+    private void readSeries(
+        SeriesInfo info, int planeIndex, int resolutionLevel,
+        long fromX, long fromY, long toX, long toY,
+        byte[] result, int resultOffset, int resultLineLength)
+        throws IOException, FormatException
+    {
+        final double downsample = (double) (1L << resolutionLevel);
+        final long[][] resolutions = resolutions(info);
+        // choosing the coarsest source, not coarser than the level: native resolution or thumbnail
+        int sourceResolution = 0;
+        for (int r = 1; r < resolutions.length; r++) {
+            final double d = (double) info.sizeX / (double) resolutions[r][0];
+            if (d <= downsample * (1.0 + LEVEL_DOWNSAMPLE_TOLERANCE)) {
+                sourceResolution = r;
+            }
+        }
+        double sourceDownsample = (double) info.sizeX / (double) resolutions[sourceResolution][0];
+        if (Math.abs(sourceDownsample / downsample - 1.0) > LEVEL_DOWNSAMPLE_TOLERANCE) {
+            final double thumbnailDownsample = (double) info.sizeX / (double) Math.max(1, info.thumbSizeX);
+            if (thumbnailDownsample <= downsample * (1.0 + LEVEL_DOWNSAMPLE_TOLERANCE)
+                && thumbnailDownsample > sourceDownsample)
+            {
+                final Thumbnail thumbnail = thumbnail(info, planeIndex);
+                copySampled(thumbnail.bytes, 0, 0, thumbnail.sizeX, thumbnail.sizeY, downsample / thumbnailDownsample,
+                    fromX, fromY, toX, toY, result, resultOffset, resultLineLength);
+                return;
+            }
+        } else {
+            sourceDownsample = downsample; // exact native resolution
+        }
+        final double scale = downsample / sourceDownsample;
+        final long resolutionSizeX = resolutions[sourceResolution][0];
+        final long resolutionSizeY = resolutions[sourceResolution][1];
+        final int sourceFromX = (int) Math.min(resolutionSizeX - 1, (long) (fromX * scale));
+        final int sourceFromY = (int) Math.min(resolutionSizeY - 1, (long) (fromY * scale));
+        final int sourceToX = (int) Math.min(resolutionSizeX, (long) ((toX - 1) * scale) + 1);
+        final int sourceToY = (int) Math.min(resolutionSizeY, (long) ((toY - 1) * scale) + 1);
+        final int sourceSizeX = sourceToX - sourceFromX;
+        final int sourceSizeY = sourceToY - sourceFromY;
+        final byte[] bytes;
+        final IFormatReader reader = largeData.borrow();
+        try {
+            switchReader(reader, info.series, sourceResolution);
+            bytes = interleave(reader.openBytes(
+                    Math.min(planeIndex, Math.max(reader.getImageCount() - 1, 0)),
+                    sourceFromX, sourceFromY, sourceSizeX, sourceSizeY),
+                sourceSizeX * sourceSizeY, reader.isInterleaved());
+        } finally {
+            largeData.giveBack(reader);
+        }
+        copySampled(bytes, sourceFromX, sourceFromY, sourceSizeX, sourceSizeY, scale,
+            fromX, fromY, toX, toY, result, resultOffset, resultLineLength);
+    }
+
+    // Nearest-neighbour sampling: level pixel (x, y) is source pixel (x * scale, y * scale);
+    // the source contains interleaved pixels of the rectangle, starting from (sourceX, sourceY)
+    private void copySampled(
+        byte[] source, int sourceX, int sourceY, int sourceSizeX, int sourceSizeY, double scale,
+        long fromX, long fromY, long toX, long toY,
+        byte[] result, int resultOffset, int resultLineLength)
+    {
+        final int pixelSize = bandCount * FormatTools.getBytesPerPixel(pixelType);
+        final int sizeX = (int) (toX - fromX);
+        final int[] sourceXOffsets = new int[sizeX];
+        for (int x = 0; x < sizeX; x++) {
+            final long sx = Math.min(sourceX + sourceSizeX - 1, (long) ((fromX + x) * scale));
+            sourceXOffsets[x] = (int) (sx - sourceX) * pixelSize;
+        }
+        for (long y = fromY; y < toY; y++) {
+            final long sy = Math.min(sourceY + sourceSizeY - 1, (long) (y * scale));
+            final int sourceLineOffset = (int) (sy - sourceY) * sourceSizeX * pixelSize;
+            int disp = (resultOffset + (int) (y - fromY) * resultLineLength) * pixelSize;
+            if (scale == 1.0) {
+                System.arraycopy(source, sourceLineOffset + sourceXOffsets[0], result, disp, sizeX * pixelSize);
+                continue;
+            }
+            for (int x = 0; x < sizeX; x++, disp += pixelSize) {
+                System.arraycopy(source, sourceLineOffset + sourceXOffsets[x], result, disp, pixelSize);
+            }
+        }
+    }
+
+    // Sizes of all resolutions of the series: {{sizeX, sizeY}, ...}
+    private long[][] resolutions(SeriesInfo info) throws IOException, FormatException {
+        long[][] result = info.resolutions;
+        if (result == null) {
+            final IFormatReader reader = largeData.borrow();
+            try {
+                switchReader(reader, info.series, 0);
+                info.thumbSizeX = reader.getThumbSizeX();
+                result = new long[Math.max(1, reader.getResolutionCount())][];
+                for (int r = 0; r < result.length; r++) {
+                    reader.setResolution(r);
+                    result[r] = new long[] {reader.getSizeX(), reader.getSizeY()};
+                }
+            } finally {
+                largeData.giveBack(reader);
+            }
+            info.resolutions = result;
+        }
+        return result;
+    }
+
+    private Thumbnail thumbnail(SeriesInfo info, int planeIndex) throws IOException, FormatException {
+        final String key = info.series + "/" + planeIndex;
+        Thumbnail result = thumbnails.get(key);
+        if (result == null) {
+            final IFormatReader reader = largeData.borrow();
+            try {
+                switchReader(reader, info.series, 0);
+                final int plane = Math.min(planeIndex, Math.max(reader.getImageCount() - 1, 0));
+                final int sizeX = reader.getThumbSizeX();
+                final int sizeY = reader.getThumbSizeY();
+                result = new Thumbnail(sizeX, sizeY,
+                    interleave(reader.openThumbBytes(plane), sizeX * sizeY, reader.isInterleaved()));
+            } finally {
+                largeData.giveBack(reader);
+            }
+            if (DEBUG_LEVEL >= 2) {
+                System.out.printf("Loci mosaic loaded thumbnail of series %d: %dx%d%n",
+                    info.series, result.sizeX, result.sizeY);
+            }
+            thumbnails.put(key, result);
+        }
+        return result;
+    }
+
+    private byte[] interleave(byte[] bytes, int numberOfPixels, boolean interleaved) {
+        if (interleaved || bandCount == 1) {
+            return bytes;
+        }
+        final int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+        final int bandSize = numberOfPixels * bytesPerPixel;
+        final byte[] result = new byte[bandCount * bandSize];
+        for (int i = 0, disp = 0; i < bandSize; i += bytesPerPixel) {
+            for (int j = 0, bandDisp = 0; j < bandCount; j++, bandDisp += bandSize) {
+                for (int k = 0; k < bytesPerPixel; k++) {
+                    result[disp++] = bytes[i + bandDisp + k];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void switchReader(IFormatReader reader, int series, int resolution) {
+        if (reader.getSeries() != series) {
+            reader.setSeries(series);
+        }
+        if (reader.getResolution() != resolution) {
+            reader.setResolution(resolution);
+        }
+    }
+
+    private static class SeriesInfo {
+        private final int series;
+        private final long sizeX;
+        private final long sizeY;
+        private volatile long[][] resolutions = null;
+        private volatile int thumbSizeX = 0;
+        // - set before resolutions
+
+        private SeriesInfo(int series, long sizeX, long sizeY) {
+            this.series = series;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+        }
+    }
+
+    private static class Thumbnail {
+        private final int sizeX;
+        private final int sizeY;
+        private final byte[] bytes; // interleaved
+
+        private Thumbnail(int sizeX, int sizeY, byte[] bytes) {
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.bytes = bytes;
+        }
+    }
+
+    // See comments to LociPlanePyramidSource.LargeDataHolder.
+    // Unlike LociPlanePyramidSource, the readers of the pool are not pinned to one series.
+    private class LargeDataHolder {
+        private volatile IFormatReader reader = null;
+        private volatile LociReaderPool pool = null;
+        private final Lock lock = new ReentrantLock();
+        private final Map<IFormatReader, LociReaderPool> lenders = new IdentityHashMap<IFormatReader, LociReaderPool>();
+
+        private void init() throws IOException, FormatException {
+            lock.lock();
+            try {
+                if (reader == null) {
+                    if (DEBUG_LEVEL >= 1) {
+                        System.out.println("Loci mosaic reader initializing " + this);
+                    }
+                    this.reader = newReader();
+                    this.pool = new LociReaderPool(new LociReaderPool.ReaderFactory() {
+                        @Override
+                        public IFormatReader newReader() throws IOException, FormatException {
+                            return LargeDataHolder.this.newReader();
+                        }
+                    }, maxNumberOfReaders, readerPoolIdleTimeout);
+                    this.pool.addFirstReader(this.reader);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private IFormatReader newReader() throws IOException, FormatException {
+            IFormatReader result = new ImageReader();
+            if (metadataCache != null) {
+                result = metadataCache.memoizer(result);
+            }
+            result.setFlattenedResolutions(false);
+            // - series are wells or scenes, and their resolutions are available via setResolution
+            result.setId(imageFile.getAbsolutePath());
+            return result;
+        }
+
+        private LociReaderPool pool() throws IOException, FormatException {
+            lock.lock();
+            try {
+                init();
+                return pool;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The returned reader must be returned by giveBack. If freeResources() closes the pool in another thread
+        // while borrowing, the file is reopened, as in the case of reading after freeResources().
+        private IFormatReader borrow() throws IOException, FormatException {
+            for (int attempt = 1; ; attempt++) {
+                final LociReaderPool pool = pool();
+                try {
+                    return lend(pool, pool.borrow());
+                } catch (LociReaderPool.ClosedException e) {
+                    if (attempt >= 2) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        // Returns the reader to the pool, from which it was borrowed (maybe already closed)
+        private void giveBack(IFormatReader reader) {
+            final LociReaderPool pool;
+            synchronized (lenders) {
+                pool = lenders.remove(reader);
+            }
+            if (pool == null) {
+                throw new IllegalStateException("The reader was not borrowed: " + reader);
+            }
+            pool.giveBack(reader);
+        }
+
+        private IFormatReader lend(LociReaderPool pool, IFormatReader reader) {
+            synchronized (lenders) {
+                lenders.put(reader, pool);
+            }
+            return reader;
+        }
+
+        private void reconfigurePool() {
+            lock.lock();
+            try {
+                if (pool != null) {
+                    pool.setMaxNumberOfReaders(maxNumberOfReaders);
+                    pool.setIdleTimeout(readerPoolIdleTimeout);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void freeResources() {
+            lock.lock();
+            try {
+                if (reader != null) {
+                    if (DEBUG_LEVEL >= 1) {
+                        System.out.println("Loci mosaic reader disposing " + this);
+                    }
+                    pool.close();
+                    pool = null;
+                    reader = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                if (DEBUG_LEVEL >= 1) {
+                    System.out.println("Loci mosaic reader finalizing " + this);
+                }
+                LociSeriesMosaicPlanePyramidSource.this.freeResources(FlushMethod.STANDARD);
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}
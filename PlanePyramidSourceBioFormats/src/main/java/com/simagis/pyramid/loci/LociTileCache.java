@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Daniel Alievsky, AlgART Laboratory (http://algart.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.simagis.pyramid.loci;
+
+import com.simagis.pyramid.common.MemoryLimitedLruCache;
+
+// Process-wide LRU cache of decoded native tiles (raw bytes, returned by IFormatReader.openBytes),
+// shared by all Loci sources in this JVM. The total size of cached tiles is limited by the system property
+// "com.simagis.pyramid.loci.tileCacheMemory" (in bytes, 128 MB by default; 0 disables caching).
+final class LociTileCache extends MemoryLimitedLruCache<LociTileCache.Key, byte[]> {
+    private static final LociTileCache INSTANCE = new LociTileCache(
+        maxMemory("com.simagis.pyramid.loci.tileCacheMemory", 128L * 1024L * 1024L));
+
+    private LociTileCache(long maxMemory) {
+        super("Loci tile cache", maxMemory);
+    }
+
+    public static LociTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    protected long memory(byte[] tile) {
+        return tile.length;
+    }
+
+    static final class Key {
+        private final String fileId;
+        private final String readerSettings;
+        private final int series;
+        private final int resolution;
+        private final int plane;
+        private final long tileX;
+        private final long tileY;
+
+        // fileId should identify the file and its version, for example, path and modification time;
+        // readerSettings should contain all settings of the reader, which affect the numbering of series
+        // and resolutions or decoding, for example, the format and flattening resolutions
+        Key(
+            String fileId, String readerSettings,
+            int series, int resolution, int plane, long tileX, long tileY)
+        {
+            assert fileId != null && readerSettings != null;
+            this.fileId = fileId;
+            this.readerSettings = readerSettings;
+            this.series = series;
+            this.resolution = resolution;
+            this.plane = plane;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return series == key.series && resolution == key.resolution && plane == key.plane
+                && tileX == key.tileX && tileY == key.tileY && fileId.equals(key.fileId)
+                && readerSettings.equals(key.readerSettings);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = fileId.hashCode();
+            result = 31 * result + readerSettings.hashCode();
+            result = 31 * result + series;
+            result = 31 * result + resolution;
+            result = 31 * result + plane;
+            result = 31 * result + (int) (tileX ^ (tileX >>> 32));
+            result = 31 * result + (int) (tileY ^ (tileY >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return fileId + " (" + readerSettings + "), series " + series + ", resolution " + resolution
+                + ", plane " + plane + ", tile (" + tileX + ", " + tileY + ")";
+        }
+    }
+}
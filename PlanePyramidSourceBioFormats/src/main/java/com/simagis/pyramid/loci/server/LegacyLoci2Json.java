@@ -134,8 +134,11 @@ public class LegacyLoci2Json {
     private static JSONObject extractLiveProject(LociPlanePyramidSource source, File projectDir, File pyramidDir)
         throws IOException, JSONException
     {
-        final Matrix<? extends PArray> label =
-            source.readSpecialMatrix(PlanePyramidSource.SpecialImageKind.LABEL_ONLY_IMAGE);
+        final Matrix<? extends PArray> label = source.readSpecialMatrix(
+            source.isSpecialMatrixSupported(PlanePyramidSource.SpecialImageKind.LABEL_ONLY_IMAGE) ?
+                PlanePyramidSource.SpecialImageKind.LABEL_ONLY_IMAGE :
+                PlanePyramidSource.SpecialImageKind.MAP_IMAGE);
+        // - the overview of the image, if there is no label series
         final Matrix<? extends PArray> map =
             source.readSpecialMatrix(PlanePyramidSource.SpecialImageKind.MAP_IMAGE);
         final MatrixToBufferedImageConverter.Packed3DToPackedRGB converter =
@@ -137,8 +137,11 @@ public class Loci2Json {
 
         final BufferedImage bufferedImage;
         try {
-            Matrix<? extends PArray> label =
-                source.readSpecialMatrix(PlanePyramidSource.SpecialImageKind.LABEL_ONLY_IMAGE);
+            Matrix<? extends PArray> label = source.readSpecialMatrix(
+                source.isSpecialMatrixSupported(PlanePyramidSource.SpecialImageKind.LABEL_ONLY_IMAGE) ?
+                    PlanePyramidSource.SpecialImageKind.LABEL_ONLY_IMAGE :
+                    PlanePyramidSource.SpecialImageKind.MAP_IMAGE);
+            // - the overview of the image, if there is no label series
             final MatrixToBufferedImageConverter.Packed3DToPackedRGB converter =
                 new MatrixToBufferedImageConverter.Packed3DToPackedRGB(false);
             if (converter.byteArrayRequired() && label.elementType() != byte.class) {
@@ -24,18 +24,24 @@
 
 package com.simagis.pyramid.loci.server;
 
+import com.simagis.pyramid.loci.LociCompositeChannel;
 import com.simagis.pyramid.loci.LociPlanePyramidSource;
+import com.simagis.pyramid.loci.LociSeriesMosaicPlanePyramidSource;
 import loci.formats.FormatException;
 import net.algart.simagis.live.json.minimal.SimagisLiveUtils;
 import net.algart.simagis.pyramid.PlanePyramidSource;
 import net.algart.simagis.pyramid.PlanePyramidSourceFactory;
+import net.algart.math.Range;
 import net.algart.simagis.pyramid.PlanePyramidTools;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class LociPlanePyramidSourceFactory implements PlanePyramidSourceFactory {
     static {
@@ -84,9 +90,38 @@ public class LociPlanePyramidSourceFactory implements PlanePyramidSourceFactory
             ? multilayerZCT.optInt("imagePlaneIndex") : lociJson.has("imagePlaneIndex")
             ? lociJson.optInt("imagePlaneIndex") : -1;
         // - lociJson.optInt above necessary to support formats before 28.Oct.2014
+        File metadataCacheDirectory = null;
+        final String directory = lociJson.optString("metadataCacheDirectory",
+            System.getProperty("com.simagis.pyramid.loci.metadataCacheDir"));
+        if (lociJson.optBoolean("metadataCache", directory != null && !directory.isEmpty())) {
+            // - by default, only if the cache directory is specified: the image directory may be read-only
+            // or belong to the user, who does not expect hidden files there
+            metadataCacheDirectory = directory != null && !directory.isEmpty() ?
+                new File(directory) :
+                path.getAbsoluteFile().getParentFile();
+            // - if the cache is explicitly enabled without a directory, near the image (like Bio-Formats memo files)
+        }
+        if (lociJson.optBoolean("seriesMosaic", false)) {
+            // all series (wells, scenes) on one plane
+            final LociSeriesMosaicPlanePyramidSource mosaic;
+            try {
+                mosaic = new LociSeriesMosaicPlanePyramidSource(null, path, metadataCacheDirectory);
+            } catch (FormatException e) {
+                throw PlanePyramidTools.rmiSafeWrapper(e);
+            }
+            mosaic.setNormalizeFractionalNumberOfBytesPerPixel(lociJson.optBoolean(
+                "normalizeFractionalNumberOfBytes", mosaic.isNormalizeFractionalNumberOfBytesPerPixel()));
+            if (imagePlaneIndex != -1) {
+                mosaic.setImagePlaneIndex(imagePlaneIndex);
+            }
+            mosaic.setMaxNumberOfReaders(lociJson.optInt("maxNumberOfReaders", mosaic.getMaxNumberOfReaders()));
+            mosaic.setReaderPoolIdleTimeout(lociJson.optLong("readerPoolIdleTimeout",
+                mosaic.getReaderPoolIdleTimeout()));
+            return mosaic;
+        }
         LociPlanePyramidSource result;
         try {
-            result = new LociPlanePyramidSource(null, path, null, null, flattenedResolutions);
+            result = new LociPlanePyramidSource(null, path, null, null, flattenedResolutions, metadataCacheDirectory);
         } catch (FormatException e) {
             throw PlanePyramidTools.rmiSafeWrapper(e);
         }
@@ -99,6 +134,38 @@ public class LociPlanePyramidSourceFactory implements PlanePyramidSourceFactory
         if (imagePlaneIndex != -1) {
             result.setImagePlaneIndex(imagePlaneIndex);
         }
+        result.setMaxNumberOfReaders(lociJson.optInt("maxNumberOfReaders",
+            result.getMaxNumberOfReaders()));
+        result.setReaderPoolIdleTimeout(lociJson.optLong("readerPoolIdleTimeout",
+            result.getReaderPoolIdleTimeout()));
+        result.setTileCaching(lociJson.optBoolean("tileCaching", result.isTileCaching()));
+        result.setPrefetchNeighbourPlanes(lociJson.optBoolean("prefetchNeighbourPlanes",
+            result.isPrefetchNeighbourPlanes()));
+        result.setEightBitOutput(lociJson.optBoolean("eightBitOutput", result.isEightBitOutput()));
+        final JSONArray compositeJson = lociJson.optJSONArray("compositeChannels");
+        if (compositeJson != null) {
+            final List<LociCompositeChannel> compositeChannels = new ArrayList<LociCompositeChannel>();
+            for (int k = 0; k < compositeJson.length(); k++) {
+                final JSONObject channelJson = compositeJson.optJSONObject(k);
+                if (channelJson == null) {
+                    throw new IOException("Invalid compositeChannels[" + k + "]: JSON object required");
+                }
+                final String color = channelJson.optString("color", "#FFFFFF");
+                final Range window = channelJson.has("min") && channelJson.has("max") ?
+                    Range.valueOf(channelJson.optDouble("min", 0.0), channelJson.optDouble("max", 0.0)) :
+                    null;
+                try {
+                    compositeChannels.add(new LociCompositeChannel(
+                        channelJson.optInt("channel", k),
+                        Integer.parseInt(color.startsWith("#") ? color.substring(1) : color, 16),
+                        window));
+                } catch (IllegalArgumentException e) {
+                    // including NumberFormatException
+                    throw new IOException("Invalid compositeChannels[" + k + "]: " + e.getMessage());
+                }
+            }
+            result.setCompositeChannels(compositeChannels);
+        }
         return result;
     }
 }
@@ -0,0 +1,66 @@
+package com.simagis.pyramid.loci;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+// Tests of LociPlanePyramidSource.toInterleavedDataArray
+public class LociInterleavingTest {
+    @Test
+    public void testBytesArePlanarToInterleaved() {
+        final byte[] bytes = {1, 2, 3, 11, 12, 13};
+        // - 2 planes of 3 pixels
+        assertArrayEquals(new byte[] {1, 11, 2, 12, 3, 13},
+            (byte[]) LociPlanePyramidSource.toInterleavedDataArray(bytes, 3, 2, 1, false, false, false));
+        assertArrayEquals(bytes,
+            (byte[]) LociPlanePyramidSource.toInterleavedDataArray(bytes, 3, 2, 1, false, false, true));
+    }
+
+    @Test
+    public void testShortsEndianness() {
+        final byte[] bytes = {0x01, 0x02, (byte) 0xFF, 0x00};
+        assertArrayEquals(new short[] {0x0201, 0x00FF},
+            (short[]) LociPlanePyramidSource.toInterleavedDataArray(bytes, 2, 1, 2, false, true, true));
+        assertArrayEquals(new short[] {0x0102, (short) 0xFF00},
+            (short[]) LociPlanePyramidSource.toInterleavedDataArray(bytes, 2, 1, 2, false, false, true));
+    }
+
+    @Test
+    public void testIntsAndFloatsEndianness() {
+        final int[] ints = {0x01020304, -2, 7, Integer.MIN_VALUE};
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            final ByteBuffer bb = ByteBuffer.allocate(4 * ints.length).order(order);
+            bb.asIntBuffer().put(ints);
+            final boolean littleEndian = order == ByteOrder.LITTLE_ENDIAN;
+            assertArrayEquals(ints, (int[]) LociPlanePyramidSource.toInterleavedDataArray(
+                bb.array(), 4, 1, 4, false, littleEndian, true));
+            final float[] floats = (float[]) LociPlanePyramidSource.toInterleavedDataArray(
+                bb.array(), 4, 1, 4, true, littleEndian, true);
+            for (int k = 0; k < ints.length; k++) {
+                assertEquals(ints[k], Float.floatToRawIntBits(floats[k]));
+            }
+        }
+    }
+
+    @Test
+    public void testPlanarDoubles() {
+        final double[] planes = {1.0, 2.0, -1.0, -2.0, 0.5, 0.25};
+        // - 3 planes of 2 pixels
+        final ByteBuffer bb = ByteBuffer.allocate(8 * planes.length).order(ByteOrder.LITTLE_ENDIAN);
+        bb.asDoubleBuffer().put(planes);
+        assertArrayEquals(new double[] {1.0, -1.0, 0.5, 2.0, -2.0, 0.25},
+            (double[]) LociPlanePyramidSource.toInterleavedDataArray(bb.array(), 2, 3, 8, true, true, false),
+            0.0);
+    }
+
+    @Test
+    public void testExtraBytesAreIgnored() {
+        final byte[] bytes = {0x00, 0x01, 0x00, 0x02, 0x7F, 0x7F};
+        // - the buffer can be longer than necessary, for example, reused
+        assertArrayEquals(new short[] {1, 2},
+            (short[]) LociPlanePyramidSource.toInterleavedDataArray(bytes, 2, 1, 2, false, false, true));
+    }
+}
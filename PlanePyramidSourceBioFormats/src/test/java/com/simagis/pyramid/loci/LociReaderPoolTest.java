@@ -0,0 +1,219 @@
+package com.simagis.pyramid.loci;
+
+import loci.formats.IFormatReader;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LociReaderPoolTest {
+    private static final long TIMEOUT = 10000; // ms
+
+    // Creates fake readers, which only remember that they were closed
+    private static class FakeReaderFactory implements LociReaderPool.ReaderFactory {
+        final AtomicInteger numberOfCreatedReaders = new AtomicInteger();
+        final Set<IFormatReader> closedReaders = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<IFormatReader, Boolean>()));
+
+        @Override
+        public IFormatReader newReader() {
+            final int index = numberOfCreatedReaders.incrementAndGet();
+            final IFormatReader[] reader = new IFormatReader[1];
+            reader[0] = (IFormatReader) Proxy.newProxyInstance(
+                IFormatReader.class.getClassLoader(),
+                new Class<?>[] {IFormatReader.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("close")) {
+                            closedReaders.add(reader[0]);
+                            return null;
+                        }
+                        if (name.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (name.equals("toString")) {
+                            return "fake reader #" + index;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+            return reader[0];
+        }
+
+        boolean isClosed(IFormatReader reader) {
+            return closedReaders.contains(reader);
+        }
+    }
+
+    @Test
+    public void testIdleReaderIsReused() throws Exception {
+        final FakeReaderFactory factory = new FakeReaderFactory();
+        final LociReaderPool pool = new LociReaderPool(factory, 4, TIMEOUT);
+        final IFormatReader reader = pool.borrow();
+        pool.giveBack(reader);
+        assertSame(reader, pool.borrow());
+        assertEquals(1, factory.numberOfCreatedReaders.get());
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testFirstReaderIsUsed() throws Exception {
+        final FakeReaderFactory factory = new FakeReaderFactory();
+        final IFormatReader first = factory.newReader();
+        final LociReaderPool pool = new LociReaderPool(factory, 4, TIMEOUT);
+        pool.addFirstReader(first);
+        assertSame(first, pool.borrow());
+        assertEquals(1, factory.numberOfCreatedReaders.get());
+    }
+
+    @Test
+    public void testBorrowedReaderIsClosedWhenGivenBackAfterClose() throws Exception {
+        final FakeReaderFactory factory = new FakeReaderFactory();
+        final LociReaderPool pool = new LociReaderPool(factory, 4, TIMEOUT);
+        final IFormatReader idle = pool.borrow();
+        final IFormatReader borrowed = pool.borrow();
+        assertNotSame(idle, borrowed);
+        pool.giveBack(idle);
+        pool.close();
+        assertTrue(factory.isClosed(idle));
+        assertFalse(factory.isClosed(borrowed));
+        pool.giveBack(borrowed);
+        assertTrue(factory.isClosed(borrowed));
+        assertEquals(0, pool.size());
+    }
+
+    @Test(expected = LociReaderPool.ClosedException.class)
+    public void testBorrowAfterCloseIsRejected() throws Exception {
+        final LociReaderPool pool = new LociReaderPool(new FakeReaderFactory(), 4, TIMEOUT);
+        pool.close();
+        pool.borrow();
+    }
+
+    @Test
+    public void testFirstReaderAddedAfterCloseIsClosed() {
+        final FakeReaderFactory factory = new FakeReaderFactory();
+        final LociReaderPool pool = new LociReaderPool(factory, 4, TIMEOUT);
+        pool.close();
+        final IFormatReader reader = factory.newReader();
+        pool.addFirstReader(reader);
+        assertTrue(factory.isClosed(reader));
+        assertEquals(0, pool.size());
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testCloseWakesWaitingBorrower() throws Exception {
+        final LociReaderPool pool = new LociReaderPool(new FakeReaderFactory(), 1, TIMEOUT);
+        pool.borrow();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Thread[] waitingThread = new Thread[1];
+            final CountDownLatch started = new CountDownLatch(1);
+            final Future<IFormatReader> future = executor.submit(new Callable<IFormatReader>() {
+                @Override
+                public IFormatReader call() throws Exception {
+                    waitingThread[0] = Thread.currentThread();
+                    started.countDown();
+                    return pool.borrow();
+                }
+            });
+            started.await();
+            waitForState(waitingThread[0], Thread.State.WAITING);
+            pool.close();
+            try {
+                future.get();
+                fail("Borrowing from the closed pool must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof LociReaderPool.ClosedException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testReaderCreatedWhileClosingIsClosedWhenGivenBack() throws Exception {
+        final CountDownLatch creationStarted = new CountDownLatch(1);
+        final CountDownLatch poolClosed = new CountDownLatch(1);
+        final FakeReaderFactory factory = new FakeReaderFactory() {
+            @Override
+            public IFormatReader newReader() {
+                creationStarted.countDown();
+                try {
+                    poolClosed.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.newReader();
+            }
+        };
+        final LociReaderPool pool = new LociReaderPool(factory, 4, TIMEOUT);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<IFormatReader> future = executor.submit(new Callable<IFormatReader>() {
+                @Override
+                public IFormatReader call() throws Exception {
+                    return pool.borrow();
+                }
+            });
+            creationStarted.await();
+            pool.close();
+            poolClosed.countDown();
+            final IFormatReader reader = future.get();
+            assertEquals(0, pool.size());
+            assertFalse(factory.isClosed(reader));
+            pool.giveBack(reader);
+            assertTrue(factory.isClosed(reader));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testNumberOfReadersIsLimited() throws Exception {
+        final FakeReaderFactory factory = new FakeReaderFactory();
+        final LociReaderPool pool = new LociReaderPool(factory, 2, TIMEOUT);
+        final IFormatReader first = pool.borrow();
+        final IFormatReader second = pool.borrow();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Thread[] waitingThread = new Thread[1];
+            final CountDownLatch started = new CountDownLatch(1);
+            final Future<IFormatReader> future = executor.submit(new Callable<IFormatReader>() {
+                @Override
+                public IFormatReader call() throws Exception {
+                    waitingThread[0] = Thread.currentThread();
+                    started.countDown();
+                    return pool.borrow();
+                }
+            });
+            started.await();
+            waitForState(waitingThread[0], Thread.State.WAITING);
+            assertFalse(future.isDone());
+            pool.giveBack(second);
+            assertSame(second, future.get());
+            assertEquals(2, factory.numberOfCreatedReaders.get());
+            pool.giveBack(first);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitForState(Thread thread, Thread.State state) throws InterruptedException {
+        while (thread.getState() != state) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.simagis.pyramid.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// LRU cache, limited by the total memory of its values: the base of process-wide caches of decoded tiles
+// and images in plane pyramid sources. Subclasses define the memory, occupied by a value.
+// Values should not be modified after put: they are shared between all users of the cache.
+// maxMemory=0 disables caching.
+public abstract class MemoryLimitedLruCache<K, V> {
+    private final String name;
+    private final long maxMemory;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(256, 0.75f, true);
+    private long usedMemory = 0;
+
+    protected MemoryLimitedLruCache(String name, long maxMemory) {
+        if (name == null) {
+            throw new NullPointerException("Null cache name");
+        }
+        if (maxMemory < 0) {
+            throw new IllegalArgumentException("Negative maximal memory");
+        }
+        this.name = name;
+        this.maxMemory = maxMemory;
+    }
+
+    // Returns the value of the system property (in bytes), or defaultMaxMemory if it is not set;
+    // negative values are replaced with 0
+    public static long maxMemory(String propertyName, long defaultMaxMemory) {
+        return Math.max(0L, Long.getLong(propertyName, defaultMaxMemory));
+    }
+
+    public final boolean isEnabled() {
+        return maxMemory > 0;
+    }
+
+    public final synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    // Values, larger than the whole cache, are not stored
+    public final synchronized void put(K key, V value) {
+        final long valueMemory = memory(value);
+        if (valueMemory > maxMemory) {
+            return;
+        }
+        final V previous = entries.put(key, value);
+        if (previous != null) {
+            usedMemory -= memory(previous);
+        }
+        usedMemory += valueMemory;
+        for (Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+             usedMemory > maxMemory && iterator.hasNext(); )
+        {
+            final Map.Entry<K, V> eldest = iterator.next();
+            usedMemory -= memory(eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": " + entries.size() + " entries, "
+            + usedMemory / 1048576 + "/" + maxMemory / 1048576 + " MB";
+    }
+
+    // In bytes; must be the same for the same value while it is in the cache
+    protected abstract long memory(V value);
+}
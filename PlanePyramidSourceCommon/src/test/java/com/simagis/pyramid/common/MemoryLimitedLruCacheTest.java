@@ -0,0 +1,100 @@
+package com.simagis.pyramid.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MemoryLimitedLruCacheTest {
+    // The memory of a value is its length
+    private static final class ByteArrayCache extends MemoryLimitedLruCache<String, byte[]> {
+        ByteArrayCache(long maxMemory) {
+            super("Test cache", maxMemory);
+        }
+
+        @Override
+        protected long memory(byte[] value) {
+            return value.length;
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedValueIsRemoved() {
+        final ByteArrayCache cache = new ByteArrayCache(100);
+        final byte[] a = new byte[40];
+        final byte[] b = new byte[40];
+        final byte[] c = new byte[40];
+        cache.put("a", a);
+        cache.put("b", b);
+        assertSame(a, cache.get("a"));
+        // - now "b" is the least recently used
+        cache.put("c", c);
+        assertSame(a, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertSame(c, cache.get("c"));
+    }
+
+    @Test
+    public void testSeveralValuesAreRemovedForLargeValue() {
+        final ByteArrayCache cache = new ByteArrayCache(100);
+        cache.put("a", new byte[30]);
+        cache.put("b", new byte[30]);
+        cache.put("c", new byte[30]);
+        final byte[] d = new byte[70];
+        cache.put("d", d);
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertSame(d, cache.get("d"));
+    }
+
+    @Test
+    public void testValueLargerThanCacheIsNotStored() {
+        final ByteArrayCache cache = new ByteArrayCache(100);
+        final byte[] a = new byte[50];
+        cache.put("a", a);
+        cache.put("b", new byte[101]);
+        assertNull(cache.get("b"));
+        assertSame(a, cache.get("a"));
+        // - the cache is not cleared for a value, which cannot be stored
+    }
+
+    @Test
+    public void testReplacedValueReleasesItsMemory() {
+        final ByteArrayCache cache = new ByteArrayCache(100);
+        cache.put("a", new byte[60]);
+        final byte[] smallA = new byte[30];
+        cache.put("a", smallA);
+        final byte[] b = new byte[60];
+        cache.put("b", b);
+        assertSame(smallA, cache.get("a"));
+        assertSame(b, cache.get("b"));
+    }
+
+    @Test
+    public void testZeroMaxMemoryDisablesCaching() {
+        final ByteArrayCache cache = new ByteArrayCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put("a", new byte[1]);
+        assertNull(cache.get("a"));
+        assertTrue(new ByteArrayCache(1).isEnabled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMaxMemoryIsRejected() {
+        new ByteArrayCache(-1);
+    }
+
+    @Test
+    public void testMaxMemoryProperty() {
+        final String propertyName = MemoryLimitedLruCacheTest.class.getName() + ".maxMemory";
+        try {
+            assertEquals(1000L, MemoryLimitedLruCache.maxMemory(propertyName, 1000L));
+            System.setProperty(propertyName, "2000");
+            assertEquals(2000L, MemoryLimitedLruCache.maxMemory(propertyName, 1000L));
+            System.setProperty(propertyName, "-1");
+            assertEquals(0L, MemoryLimitedLruCache.maxMemory(propertyName, 1000L));
+        } finally {
+            System.clearProperty(propertyName);
+        }
+    }
+}
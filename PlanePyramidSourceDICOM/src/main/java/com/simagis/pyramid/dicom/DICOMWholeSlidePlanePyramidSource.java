@@ -0,0 +1,698 @@
+package com.simagis.pyramid.dicom;
+
+import com.simagis.pyramid.dicom.server.DICOMFileMetadata;
+import net.algart.arrays.*;
+import net.algart.math.IPoint;
+import net.algart.math.IRectangularArea;
+import net.algart.simagis.pyramid.PlanePyramidSource;
+import net.algart.simagis.pyramid.PlanePyramidTools;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.*;
+import java.nio.channels.NotYetConnectedException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// VL Whole Slide Microscopy series: every pyramid level is a separate DICOM instance (file) in the same directory,
+// every frame of the instance is one tile of the total pixel matrix. Only the frames, intersecting
+// the requested rectangle, are decoded, in parallel. Label, overview and thumbnail instances of the series
+// are returned as special images.
+public final class DICOMWholeSlidePlanePyramidSource extends AbstractArrayProcessorWithContextSwitching
+    implements PlanePyramidSource, ArrayProcessorWithContextSwitching
+{
+    public static final String WHOLE_SLIDE_MICROSCOPY_SOP_CLASS_UID = "1.2.840.10008.5.1.4.1.1.77.1.6";
+
+    // tags of the WSI IOD, absent in dcm4che2 Tag class
+    private static final int DIMENSION_ORGANIZATION_TYPE = 0x00209311;
+    private static final int TOTAL_PIXEL_MATRIX_COLUMNS = 0x00480006;
+    private static final int TOTAL_PIXEL_MATRIX_ROWS = 0x00480007;
+    private static final int PLANE_POSITION_SLIDE_SEQUENCE = 0x0048021A;
+    private static final int COLUMN_POSITION_IN_TOTAL_IMAGE_PIXEL_MATRIX = 0x0048021E;
+    private static final int ROW_POSITION_IN_TOTAL_IMAGE_PIXEL_MATRIX = 0x0048021F;
+    private static final int PER_FRAME_FUNCTIONAL_GROUPS_SEQUENCE = 0x52009230;
+
+    private static final int DEFAULT_DICOM_COMPRESSION = 2; // for a case of 1 level
+    private static final int MAX_SPECIAL_IMAGE_SIZE = 2048;
+    private static final int MAX_CACHED_SERIES_INSTANCES = 1024;
+
+    private static final Map<File, SeriesIndex> SERIES_INDICES = new LinkedHashMap<File, SeriesIndex>(
+        16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, SeriesIndex> eldest) {
+            return size() > MAX_CACHED_SERIES_INSTANCES;
+        }
+    };
+    // - canonical instance file -> index of its series; all instances of the series share one index
+
+    private static final ExecutorService DECODER = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread result = new Thread(r, "DICOM WSI frame decoder");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+
+    private final File imageFile;
+    private final List<LevelInfo> levels;
+    private final Map<SpecialImageKind, File> associatedImages = new EnumMap<SpecialImageKind, File>(
+        SpecialImageKind.class);
+    private final int numberOfResolutions;
+    private final int compression;
+    private final int bandCount;
+    private final boolean sixteenBit;
+    private final LargeDataHolder largeData = new LargeDataHolder();
+
+    // imageFile is any instance of the series: all instances of the series are searched in its directory
+    public DICOMWholeSlidePlanePyramidSource(ArrayContext context, File imageFile) throws IOException {
+        super(context);
+        if (imageFile == null) {
+            throw new NullPointerException("Null imageFile");
+        }
+        this.imageFile = imageFile;
+        final SeriesIndex index = SeriesIndex.getInstance(imageFile.getCanonicalFile());
+        final List<LevelInfo> allLevels = index.volumes;
+        this.associatedImages.putAll(index.associatedImages);
+        final LevelInfo first = allLevels.get(0);
+        this.bandCount = first.bandCount;
+        this.sixteenBit = first.sixteenBit;
+        this.levels = new ArrayList<LevelInfo>();
+        this.levels.add(first);
+        int compression = DEFAULT_DICOM_COMPRESSION;
+        LevelInfo last = first;
+        for (LevelInfo level : allLevels.subList(1, allLevels.size())) {
+            if (level.bandCount != bandCount || level.sixteenBit != sixteenBit
+                || level.dimX == last.dimX)
+            {
+                continue; // another optical path, focal plane or duplicate
+            }
+            final long[] lastDimensions = {bandCount, last.dimX, last.dimY};
+            final long[] newDimensions = {bandCount, level.dimX, level.dimY};
+            if (this.levels.size() == 1) {
+                compression = PlanePyramidTools.findCompression(lastDimensions, newDimensions);
+                if (compression == 0) {
+                    break;
+                }
+            }
+            if (!PlanePyramidTools.isDimensionsRelationCorrect(lastDimensions, newDimensions, compression)) {
+                break;
+            }
+            this.levels.add(level);
+            last = level;
+        }
+        this.compression = this.levels.size() == 1 ? DEFAULT_DICOM_COMPRESSION : compression;
+        this.numberOfResolutions = this.levels.size();
+        if (DEBUG_LEVEL >= 1) {
+            System.out.println("DICOM WSI source found " + numberOfResolutions + " levels with compression "
+                + this.compression + " among " + allLevels.size() + " VOLUME instances of " + imageFile
+                + "; associated images: " + associatedImages.keySet());
+        }
+    }
+
+    public static boolean isWholeSlideFile(File file) {
+        try {
+            return DICOMFileMetadata.getInstance(file).isWholeSlide();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int numberOfResolutions() {
+        return numberOfResolutions;
+    }
+
+    public int compression() {
+        return compression;
+    }
+
+    public int bandCount() {
+        return bandCount;
+    }
+
+    public boolean isResolutionLevelAvailable(int resolutionLevel) {
+        return true;
+    }
+
+    public boolean[] getResolutionLevelsAvailability() {
+        boolean[] result = new boolean[numberOfResolutions()];
+        JArrays.fillBooleanArray(result, true);
+        return result;
+    }
+
+    public long[] dimensions(int resolutionLevel) {
+        if (resolutionLevel < 0 || resolutionLevel >= numberOfResolutions) {
+            throw new NoSuchElementException("No resolution level #" + resolutionLevel);
+        }
+        final LevelInfo level = levels.get(resolutionLevel);
+        return new long[] {bandCount, level.dimX, level.dimY};
+    }
+
+    public boolean isElementTypeSupported() {
+        return true;
+    }
+
+    public Class<?> elementType() {
+        return sixteenBit ? short.class : byte.class;
+    }
+
+    public boolean isDataReady() {
+        return true;
+    }
+
+    public void loadResources() {
+    }
+
+    public void freeResources(FlushMethod flushMethod) {
+        largeData.freeResources();
+    }
+
+    public String additionalMetadata() {
+        return null;
+    }
+
+    public boolean isFullMatrixSupported() {
+        return context() != null;
+    }
+
+    public Matrix<? extends PArray> readFullMatrix(int resolutionLevel)
+        throws NoSuchElementException, NotYetConnectedException, UnsupportedOperationException
+    {
+        if (context() == null) {
+            throw new UnsupportedOperationException("readFullMatrix method must not be used " +
+                "when the context is not specified");
+        }
+        final long[] dimensions = dimensions(resolutionLevel);
+        return readSubMatrix(resolutionLevel, 0, 0, dimensions[DIM_WIDTH], dimensions[DIM_HEIGHT]);
+    }
+
+    public boolean isSpecialMatrixSupported(SpecialImageKind kind) {
+        if (kind == null) {
+            return false;
+        }
+        if (associatedImages.containsKey(kind)) {
+            return true;
+        }
+        if (kind != SpecialImageKind.WHOLE_SLIDE && kind != SpecialImageKind.MAP_IMAGE) {
+            return false; // the coarsest level is not a label or another special image
+        }
+        final long[] dimensions = dimensions(numberOfResolutions - 1);
+        return dimensions[DIM_WIDTH] <= MAX_SPECIAL_IMAGE_SIZE && dimensions[DIM_HEIGHT] <= MAX_SPECIAL_IMAGE_SIZE;
+    }
+
+    // Associated instance of the series, if exists, or the coarsest level for the whole slide and the map image,
+    // if it is not too large
+    public Matrix<? extends PArray> readSpecialMatrix(SpecialImageKind kind) throws NotYetConnectedException {
+        if (kind == null) {
+            throw new NullPointerException("Null image kind");
+        }
+        if (!isSpecialMatrixSupported(kind)) {
+            return null;
+        }
+        final File file = associatedImages.get(kind);
+        if (file != null) {
+            try {
+                return readAssociatedImage(file);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+        final long[] dimensions = dimensions(numberOfResolutions - 1);
+        return readSubMatrix(numberOfResolutions - 1, 0, 0, dimensions[DIM_WIDTH], dimensions[DIM_HEIGHT]);
+    }
+
+    public List<IRectangularArea> zeroLevelActualRectangles() {
+        return null;
+    }
+
+    public List<List<List<IPoint>>> zeroLevelActualAreaBoundaries() {
+        return null;
+    }
+
+    @Override
+    public Matrix<? extends PArray> readSubMatrix(
+        int resolutionLevel, long fromX, long fromY, long toX, long toY)
+    {
+        final long[] dim = dimensions(resolutionLevel);
+        final long dimX = dim[DIM_WIDTH];
+        final long dimY = dim[DIM_HEIGHT];
+        if (fromX < 0 || fromY < 0 || fromX > toX || fromY > toY || toX > dimX || toY > dimY) {
+            throw new IndexOutOfBoundsException("Illegal fromX/fromY/toX/toY: must be in ranges 0.."
+                + dimX + ", 0.." + dimY + ", fromX<=toX, fromY<=toY");
+        }
+        if (toX - fromX > Integer.MAX_VALUE || toY - fromY > Integer.MAX_VALUE ||
+            (toX - fromX) * (toY - fromY) >= Integer.MAX_VALUE / bandCount / 2)
+        {
+            throw new IllegalArgumentException("Too large rectangle " + (toX - fromX) + "x" + (toY - fromY));
+        }
+        final LevelInfo level = levels.get(resolutionLevel);
+        final int sizeX = (int) (toX - fromX);
+        final int sizeY = (int) (toY - fromY);
+        final Object result = sixteenBit ? new short[sizeX * sizeY * bandCount] : new byte[sizeX * sizeY * bandCount];
+        // - interleaved pixels; missing tiles of sparse levels stay zero
+        if (sizeX > 0 && sizeY > 0) {
+            final int fromTileX = (int) (fromX / level.tileSizeX);
+            final int fromTileY = (int) (fromY / level.tileSizeY);
+            final int toTileX = (int) ((toX - 1) / level.tileSizeX);
+            final int toTileY = (int) ((toY - 1) / level.tileSizeY);
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int tileY = fromTileY; tileY <= toTileY; tileY++) {
+                for (int tileX = fromTileX; tileX <= toTileX; tileX++) {
+                    final int frame = level.frame(tileX, tileY);
+                    if (frame == 0) {
+                        continue;
+                    }
+                    final long tileFromX = (long) tileX * level.tileSizeX;
+                    final long tileFromY = (long) tileY * level.tileSizeY;
+                    if (fromTileX == toTileX && fromTileY == toTileY) {
+                        // no sense to use other threads for 1 frame
+                        try {
+                            readFrame(level, frame, tileFromX, tileFromY, fromX, fromY, toX, toY, result, sizeX);
+                        } catch (IOException e) {
+                            throw new IOError(e);
+                        }
+                        continue;
+                    }
+                    futures.add(DECODER.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            readFrame(level, frame, tileFromX, tileFromY, fromX, fromY, toX, toY, result, sizeX);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            waitFor(futures);
+        }
+        return Matrices.matrix((PArray) SimpleMemoryModel.asUpdatableArray(result), bandCount, sizeX, sizeY);
+    }
+
+    @Override
+    public String toString() {
+        return "DICOM WSI pyramid source for " + imageFile + ": " + numberOfResolutions + " levels, "
+            + bandCount + " bands, " + (sixteenBit ? "16" : "8") + " bits, compression " + compression;
+    }
+
+    // Copies the intersection of the frame (tile, starting at tileFromX, tileFromY) and the rectangle
+    // fromX..toX-1, fromY..toY-1 into result (interleaved pixels, resultLineLength pixels per line)
+    private void readFrame(
+        LevelInfo level, int frame, long tileFromX, long tileFromY,
+        long fromX, long fromY, long toX, long toY,
+        Object result, int resultLineLength)
+        throws IOException
+    {
+        final ImageReader reader = largeData.borrow(level.file);
+        final Raster raster;
+        try {
+            raster = level.palette || bandCount > 1 ?
+                toRGB(reader.read(frame - 1)).getRaster() :
+                reader.readRaster(frame - 1, null);
+            // - monochrome: raw stored values; colour: converted from YBR or palette to 8-bit RGB
+        } finally {
+            largeData.giveBack(level.file, reader);
+        }
+        final int x1 = (int) (Math.max(fromX, tileFromX) - tileFromX);
+        final int y1 = (int) (Math.max(fromY, tileFromY) - tileFromY);
+        final int x2 = (int) (Math.min(Math.min(toX, tileFromX + level.tileSizeX) - tileFromX, raster.getWidth()));
+        final int y2 = (int) (Math.min(Math.min(toY, tileFromY + level.tileSizeY) - tileFromY, raster.getHeight()));
+        if (x1 >= x2 || y1 >= y2) {
+            return;
+        }
+        final int lineLength = (x2 - x1) * bandCount;
+        int[] line = new int[lineLength];
+        for (int y = y1; y < y2; y++) {
+            line = raster.getPixels(raster.getMinX() + x1, raster.getMinY() + y, x2 - x1, 1, line);
+            final int resultOffset = (int) (((tileFromY + y - fromY) * resultLineLength
+                + tileFromX + x1 - fromX) * bandCount);
+            if (result instanceof byte[]) {
+                final byte[] bytes = (byte[]) result;
+                for (int k = 0; k < lineLength; k++) {
+                    bytes[resultOffset + k] = (byte) line[k];
+                }
+            } else {
+                final short[] shorts = (short[]) result;
+                for (int k = 0; k < lineLength; k++) {
+                    shorts[resultOffset + k] = (short) line[k];
+                }
+            }
+        }
+    }
+
+    private Matrix<? extends PArray> readAssociatedImage(File file) throws IOException {
+        final ImageReader reader = largeData.borrow(file);
+        final BufferedImage image;
+        try {
+            image = toRGB(reader.read(0));
+        } finally {
+            largeData.giveBack(file, reader);
+        }
+        final int sizeX = image.getWidth();
+        final int sizeY = image.getHeight();
+        final int[] pixels = image.getRaster().getPixels(0, 0, sizeX, sizeY, (int[]) null);
+        final byte[] bytes = new byte[pixels.length];
+        for (int k = 0; k < bytes.length; k++) {
+            bytes[k] = (byte) pixels[k];
+        }
+        return Matrices.matrix(SimpleMemoryModel.asUpdatableByteArray(bytes), 3, sizeX, sizeY);
+    }
+
+    private static BufferedImage toRGB(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR || image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image; // getPixels returns R, G, B for these types
+        }
+        final BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(),
+            BufferedImage.TYPE_INT_RGB);
+        result.getGraphics().drawImage(image, 0, 0, null);
+        return result;
+    }
+
+    private static void waitFor(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOError(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOError(cause);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    // Returns null if the file is not a DICOM file
+    private static DicomObject readHeader(File file) throws IOException {
+        return DICOMFileMetadata.hasDicomPreamble(file) ? DICOMFileMetadata.readHeader(file) : null;
+    }
+
+    private static boolean isWholeSlide(DicomObject dicom) {
+        return WHOLE_SLIDE_MICROSCOPY_SOP_CLASS_UID.equals(dicom.getString(Tag.SOPClassUID));
+    }
+
+    // The 3rd value of ImageType: VOLUME, LABEL, OVERVIEW or THUMBNAIL
+    private static String imageFlavor(DicomObject dicom) {
+        final String[] imageType = dicom.getStrings(Tag.ImageType);
+        return imageType == null || imageType.length < 3 ? null : imageType[2].trim().toUpperCase();
+    }
+
+    private static List<File> seriesFiles(File directory, File imageFile) {
+        final File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) {
+            return Collections.singletonList(imageFile);
+        }
+        final List<File> result = new ArrayList<File>(java.util.Arrays.asList(files));
+        Collections.sort(result);
+        return result;
+    }
+
+    // Instances of one series in the directory: VOLUME levels, sorted by decreasing width, and associated images.
+    // Listing the directory and parsing all headers is long, so the index is shared by all sources
+    // of the series in this JVM while the directory (its list of files) and the instances are not modified.
+    private static class SeriesIndex {
+        private final File directory;
+        private final long directoryLastModified;
+        private final Map<File, long[]> instances = new HashMap<File, long[]>();
+        // - instance -> {length, last modification time}
+        private final List<LevelInfo> volumes = new ArrayList<LevelInfo>();
+        private final Map<SpecialImageKind, File> associatedImages = new EnumMap<SpecialImageKind, File>(
+            SpecialImageKind.class);
+
+        private SeriesIndex(File imageFile) throws IOException {
+            this.directory = imageFile.getParentFile();
+            this.directoryLastModified = directory == null ? 0 : directory.lastModified();
+            // - before listing: if a file is added while scanning, this index will be built again
+            final DicomObject header = readHeader(imageFile);
+            if (header == null || !isWholeSlide(header)) {
+                throw new IOException(imageFile + " is not a DICOM whole slide microscopy image");
+            }
+            final String seriesUID = header.getString(Tag.SeriesInstanceUID);
+            for (File file : seriesFiles(directory, imageFile)) {
+                final long length = file.length();
+                final long lastModified = file.lastModified();
+                final DicomObject dicom = file.equals(imageFile) ? header : readHeader(file);
+                if (dicom == null || !isWholeSlide(dicom)
+                    || (seriesUID != null && !seriesUID.equals(dicom.getString(Tag.SeriesInstanceUID))))
+                {
+                    continue;
+                }
+                instances.put(file, new long[] {length, lastModified});
+                final String flavor = imageFlavor(dicom);
+                if ("VOLUME".equals(flavor)) {
+                    volumes.add(new LevelInfo(file, dicom));
+                } else if ("LABEL".equals(flavor)) {
+                    associatedImages.put(SpecialImageKind.LABEL_ONLY_IMAGE, file);
+                } else if ("OVERVIEW".equals(flavor)) {
+                    associatedImages.put(SpecialImageKind.WHOLE_SLIDE, file);
+                } else if ("THUMBNAIL".equals(flavor)) {
+                    associatedImages.put(SpecialImageKind.MAP_IMAGE, file);
+                }
+            }
+            if (volumes.isEmpty()) {
+                throw new IOException("No VOLUME instances in the series of " + imageFile);
+            }
+            Collections.sort(volumes, new Comparator<LevelInfo>() {
+                @Override
+                public int compare(LevelInfo o1, LevelInfo o2) {
+                    return o1.dimX > o2.dimX ? -1 : o1.dimX < o2.dimX ? 1 : 0;
+                }
+            });
+        }
+
+        // imageFile must be canonical
+        private static SeriesIndex getInstance(File imageFile) throws IOException {
+            synchronized (SERIES_INDICES) {
+                final SeriesIndex result = SERIES_INDICES.get(imageFile);
+                if (result != null && result.isActual()) {
+                    return result;
+                }
+            }
+            final SeriesIndex result = new SeriesIndex(imageFile);
+            // - parsing without synchronization: other series are not blocked
+            synchronized (SERIES_INDICES) {
+                for (File file : result.instances.keySet()) {
+                    SERIES_INDICES.put(file, result);
+                }
+            }
+            if (DEBUG_LEVEL >= 1) {
+                System.out.println("DICOM WSI source indexed " + result.instances.size()
+                    + " instances of the series of " + imageFile);
+            }
+            return result;
+        }
+
+        private boolean isActual() {
+            if (directory != null && directory.lastModified() != directoryLastModified) {
+                return false; // files were added or removed
+            }
+            for (Map.Entry<File, long[]> entry : instances.entrySet()) {
+                final File file = entry.getKey();
+                if (file.length() != entry.getValue()[0] || file.lastModified() != entry.getValue()[1]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class LevelInfo {
+        private final File file;
+        private final long dimX;
+        private final long dimY;
+        private final int tileSizeX;
+        private final int tileSizeY;
+        private final int tileCountX;
+        private final int tileCountY;
+        private final int bandCount;
+        private final boolean sixteenBit;
+        private final boolean palette;
+        private final int[] frames; // frame numbers (1, 2, ...) for all tiles; null for TILED_FULL
+
+        private LevelInfo(File file, DicomObject dicom) throws IOException {
+            this.file = file;
+            this.tileSizeX = dicom.getInt(Tag.Columns);
+            this.tileSizeY = dicom.getInt(Tag.Rows);
+            this.dimX = dicom.getInt(TOTAL_PIXEL_MATRIX_COLUMNS, tileSizeX) & 0xFFFFFFFFL;
+            this.dimY = dicom.getInt(TOTAL_PIXEL_MATRIX_ROWS, tileSizeY) & 0xFFFFFFFFL;
+            final int samplesPerPixel = dicom.getInt(Tag.SamplesPerPixel, 1);
+            final int bitsAllocated = dicom.getInt(Tag.BitsAllocated, 8);
+            final String photometric = dicom.getString(Tag.PhotometricInterpretation);
+            this.palette = photometric != null && photometric.trim().equalsIgnoreCase("PALETTE COLOR");
+            // - indices of a palette are converted to RGB; bits allocated for them do not matter
+            if (samplesPerPixel != 1 && samplesPerPixel != 3) {
+                throw new IOException("Unsupported number of samples per pixel " + samplesPerPixel + " in " + file);
+            }
+            if (samplesPerPixel == 3 && bitsAllocated > 8) {
+                throw new IOException("Colour images with " + bitsAllocated
+                    + " bits per sample are not supported: " + file);
+                // - colour is converted to 8-bit RGB, which would lose precision
+            }
+            this.bandCount = palette ? 3 : samplesPerPixel;
+            this.sixteenBit = !palette && bitsAllocated > 8;
+            if (tileSizeX <= 0 || tileSizeY <= 0 || dimX <= 0 || dimY <= 0) {
+                throw new IOException("Invalid tile geometry in " + file + ": " + tileSizeX + "x" + tileSizeY
+                    + " tiles of " + dimX + "x" + dimY + " total pixel matrix");
+            }
+            this.tileCountX = (int) ((dimX + tileSizeX - 1) / tileSizeX);
+            this.tileCountY = (int) ((dimY + tileSizeY - 1) / tileSizeY);
+            if ("TILED_FULL".equalsIgnoreCase(dicom.getString(DIMENSION_ORGANIZATION_TYPE))) {
+                this.frames = null;
+                return;
+            }
+            // TILED_SPARSE: tile positions are specified for every frame
+            this.frames = new int[tileCountX * tileCountY];
+            final DicomElement perFrame = dicom.get(PER_FRAME_FUNCTIONAL_GROUPS_SEQUENCE);
+            if (perFrame == null) {
+                throw new IOException("No tile positions (per-frame functional groups) in " + file);
+            }
+            for (int k = 0, n = perFrame.countItems(); k < n; k++) {
+                final DicomObject position = perFrame.getDicomObject(k).getNestedDicomObject(
+                    PLANE_POSITION_SLIDE_SEQUENCE);
+                if (position == null) {
+                    continue;
+                }
+                final int x = position.getInt(COLUMN_POSITION_IN_TOTAL_IMAGE_PIXEL_MATRIX, 1) - 1;
+                final int y = position.getInt(ROW_POSITION_IN_TOTAL_IMAGE_PIXEL_MATRIX, 1) - 1;
+                if (x < 0 || y < 0 || x >= dimX || y >= dimY) {
+                    continue;
+                }
+                final int index = y / tileSizeY * tileCountX + x / tileSizeX;
+                if (frames[index] == 0) {
+                    frames[index] = k + 1; // the first focal plane / optical path for every tile
+                }
+            }
+        }
+
+        // Returns 0 if there is no such tile
+        private int frame(int tileX, int tileY) {
+            final int index = tileY * tileCountX + tileX;
+            return frames == null ? index + 1 : frames[index];
+        }
+    }
+
+    // Pool of DICOM ImageIO readers for every instance: ImageReader is not thread-safe, so every decoding
+    // thread uses its own reader with its own stream.
+    private class LargeDataHolder {
+        private final Map<File, Deque<ImageReader>> idleReaders = new HashMap<File, Deque<ImageReader>>();
+        // Generations, when the readers in use were borrowed; freeResources starts a new generation,
+        // and readers of previous generations are closed when given back
+        private final Map<ImageReader, Integer> lentReaders = new IdentityHashMap<ImageReader, Integer>();
+        private int generation = 0;
+        private final Lock lock = new ReentrantLock();
+
+        private ImageReader borrow(File file) throws IOException {
+            lock.lock();
+            try {
+                final Deque<ImageReader> readers = idleReaders.get(file);
+                if (readers != null && !readers.isEmpty()) {
+                    final ImageReader result = readers.pop();
+                    lentReaders.put(result, generation);
+                    return result;
+                }
+            } finally {
+                lock.unlock();
+            }
+            final Iterator<ImageReader> iterator = ImageIO.getImageReadersByFormatName("DICOM");
+            if (!iterator.hasNext()) {
+                throw new IOException("DICOM ImageIO reader is not installed");
+            }
+            final ImageReader result = iterator.next();
+            final ImageInputStream stream = ImageIO.createImageInputStream(file);
+            if (stream == null) {
+                throw new FileNotFoundException("Cannot open " + file);
+            }
+            result.setInput(stream, false);
+            if (DEBUG_LEVEL >= 2) {
+                System.out.println("DICOM WSI source opened new reader for " + file);
+            }
+            lock.lock();
+            try {
+                lentReaders.put(result, generation);
+            } finally {
+                lock.unlock();
+            }
+            return result;
+        }
+
+        private void giveBack(File file, ImageReader reader) {
+            lock.lock();
+            try {
+                final Integer lentGeneration = lentReaders.remove(reader);
+                if (lentGeneration != null && lentGeneration == generation) {
+                    Deque<ImageReader> readers = idleReaders.get(file);
+                    if (readers == null) {
+                        readers = new ArrayDeque<ImageReader>();
+                        idleReaders.put(file, readers);
+                    }
+                    readers.push(reader);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            // the resources were freed while the reader was used
+            closeReader(reader);
+        }
+
+        // Closes idle readers; readers, used at this moment, are returned and closed later
+        private void freeResources() {
+            final List<ImageReader> readersToClose = new ArrayList<ImageReader>();
+            lock.lock();
+            try {
+                for (Deque<ImageReader> readers : idleReaders.values()) {
+                    readersToClose.addAll(readers);
+                }
+                idleReaders.clear();
+                generation++;
+            } finally {
+                lock.unlock();
+            }
+            for (ImageReader reader : readersToClose) {
+                closeReader(reader);
+            }
+        }
+
+        private void closeReader(ImageReader reader) {
+            final Object input = reader.getInput();
+            reader.dispose();
+            if (input instanceof ImageInputStream) {
+                try {
+                    ((ImageInputStream) input).close();
+                } catch (IOException e) {
+                    // nothing to do: the reader is not used more
+                }
+            }
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                if (DEBUG_LEVEL >= 1) {
+                    System.out.println("DICOM WSI reader pool finalizing " + this);
+                }
+                freeResources();
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.simagis.pyramid.dicom.server;
 
 import net.algart.simagis.imageio.IIOMetadataToJsonConverter;
 import net.algart.simagis.live.json.minimal.SimagisLiveUtils;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.imageio.plugins.dcm.DicomStreamMetaData;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -16,8 +19,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class DICOM2Json {
+    // tags, returned by the header-only mode by default; patient identification is not included
+    private static final String DEFAULT_TAGS = "SOPClassUID,Modality,StudyInstanceUID,SeriesInstanceUID,"
+        + "StudyDate,StudyDescription,SeriesDescription,BodyPartExamined,Manufacturer,ManufacturerModelName,"
+        + "PhotometricInterpretation,PixelSpacing,NumberOfFrames";
+
     public static void main(String... args) {
         SimagisLiveUtils.disableStandardOutput();
         try {
@@ -28,7 +38,15 @@ public class DICOM2Json {
                 throw new FileNotFoundException("File not found: " + file.getAbsolutePath());
             }
             final JSONObject json = new JSONObject();
-            final JSONObject result = getResultJson(file, options.optBoolean("extractLiveProject"));
+            final boolean extractLiveProject = options.optBoolean("extractLiveProject");
+            final boolean headerOnly = options.optBoolean("headerOnly", false);
+            // - the full ImageIO analysis is performed by default, as before
+            JSONObject result = headerOnly ?
+                getHeaderResultJson(file, extractLiveProject, options.optString("tags", DEFAULT_TAGS)) :
+                null;
+            if (result == null) {
+                result = getResultJson(file, extractLiveProject);
+            }
             json.put("result", result);
             SimagisLiveUtils.OUT.print(json.toString(4));
             System.exit(0);
@@ -39,6 +57,67 @@ public class DICOM2Json {
         }
     }
 
+    // Streaming mode: parses the tags before PixelData without ImageIO and metadata trees.
+    // Returns null if the file is not a DICOM image: then the full ImageIO analysis should be used.
+    private static JSONObject getHeaderResultJson(File file, boolean extractLiveProject, String tags)
+        throws IOException, JSONException, ScriptException
+    {
+        final Map<String, Integer> selectedTags = parseTags(tags);
+        final DicomObject header;
+        try {
+            header = DICOMFileMetadata.readHeader(file);
+        } catch (IOException e) {
+            return null;
+        }
+        if (header == null || !header.contains(Tag.Columns) || !header.contains(Tag.Rows)) {
+            return null;
+        }
+        final String formatName = imageIOFormatName();
+        if (formatName == null) {
+            return null;
+        }
+        final JSONObject result = new JSONObject();
+        result.put("formatChecked", true);
+        final JSONObject imageType = SimagisLiveUtils.openObject(result, "imageType");
+        JSONObject formatSpecific = new JSONObject();
+        formatSpecific.put("javaFormatType", "DICOM");
+        formatSpecific.put("javaFormatName", formatName);
+        formatSpecific.put("headerOnly", true);
+        result.put("formatSpecific", formatSpecific);
+        final DICOMImageIOMetadata metadata = DICOMFileMetadata.getInstance(file, header, false).getImageIOMetadata();
+        // - no sidecar file: the file is usually analysed once while uploading
+        final int dimX = metadata.getWidth();
+        final int dimY = metadata.getHeight();
+        if ((long) dimX * (long) dimY >= 512L * 1024L * 1024L) {
+            result.put("rejected", true);
+            result.put("message", "Too large image (more than 512 million pixels)");
+            return result;
+            // see comments in getResultJson
+        }
+        result.put("dimX", dimX);
+        result.put("dimY", dimY);
+        imageType.put("numComponents", metadata.isPaletteColor() ? 3 : metadata.getSamples());
+        imageType.put("numBands", metadata.getSamples());
+        if (!metadata.isPaletteColor() && metadata.getSamples() >= 4) {
+            result.put("recommendedRenderingFormat", "png");
+        }
+        result.put("DICOMMetadata", new JSONObject(metadata));
+        final JSONObject tagsJson = new JSONObject();
+        for (Map.Entry<String, Integer> entry : selectedTags.entrySet()) {
+            final String[] values = header.getStrings(entry.getValue());
+            if (values != null && values.length > 0) {
+                tagsJson.put(entry.getKey(), String.join("\\", values));
+                // - standard DICOM separator of multiple values
+            }
+        }
+        result.put("DICOMTags", tagsJson);
+        if (extractLiveProject) {
+            result.put("liveProject", extractLiveProject(result));
+        }
+        result.put("rejected", false);
+        return result;
+    }
+
     private static JSONObject getResultJson(File file, boolean extractLiveProject)
         throws IOException, JSONException, ScriptException
     {
@@ -84,11 +163,11 @@ public class DICOM2Json {
             }
             final IIOMetadata streamMetadata = reader.getStreamMetadata();
             final IIOMetadataToJsonConverter converter = new IIOMetadataToJsonConverter();
+            if (streamMetadata instanceof DicomStreamMetaData) {
+                result.put("DICOMMetadata", new JSONObject(DICOMFileMetadata.getInstance(file).getImageIOMetadata()));
+                // - parsed once per file and shared with the pyramid source factory
+            }
             if (streamMetadata != null) {
-                DICOMImageIOMetadata imageIOMetadata = DICOMImageIOMetadata.getInstance(streamMetadata, 0);
-                if (imageIOMetadata != null) {
-                    result.put("DICOMMetadata", new JSONObject(imageIOMetadata));
-                }
                 result.put("streamMetadata", converter.toJson(streamMetadata));
             }
             final IIOMetadata imageMetadata = reader.getImageMetadata(0);
@@ -120,10 +199,55 @@ public class DICOM2Json {
                 final Object value = dicomMetadata.get(key);
                 SimagisLiveUtils.putRowAttribute(attributes, "DICOM." + key, value, true);
             }
+            final JSONObject dicomTags = resultJson.optJSONObject("DICOMTags");
+            if (dicomTags != null) {
+                for (String key : SimagisLiveUtils.getKeySet(dicomTags)) {
+                    SimagisLiveUtils.putRowAttribute(attributes, "DICOM." + key, dicomTags.get(key), true);
+                }
+            }
             liveProject.put("attributes", attributes);
             return liveProject;
         } else {
             return null;
         }
     }
+
+    // The same format name, as reported by the ImageIO reader in getResultJson;
+    // null if the DICOM ImageIO reader is not installed
+    private static String imageIOFormatName() throws IOException {
+        final Iterator<ImageReader> iterator = ImageIO.getImageReadersByFormatName("DICOM");
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        final ImageReader reader = iterator.next();
+        try {
+            return reader.getFormatName();
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // Comma-separated tag keywords (like "StudyDate") or hexadecimal tags (like "00080020");
+    // unknown keywords are skipped
+    private static Map<String, Integer> parseTags(String tags) {
+        final Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (String name : tags.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.matches("[0-9A-Fa-f]{8}")) {
+                result.put(name, (int) Long.parseLong(name, 16));
+                continue;
+            }
+            try {
+                result.put(name, Tag.class.getField(name).getInt(null));
+            } catch (NoSuchFieldException e) {
+                System.err.println("Unknown DICOM tag " + name + " is skipped");
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return result;
+    }
 }
@@ -0,0 +1,108 @@
+package com.simagis.pyramid.dicom.server;
+
+import com.simagis.pyramid.common.MemoryLimitedLruCache;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+
+// Process-wide LRU cache of decoded DICOM images, shared by all sources in this JVM: the viewer creates
+// new source for every session and rendering change, and the same studies are opened again and again.
+// The key is the file (path, length and modification time) and all parameters, affecting decoding.
+// The total size of cached images is limited by the system property
+// "com.simagis.pyramid.dicom.decodedImageCacheMemory" (in bytes, 256 MB by default; 0 disables caching).
+// Images should not be modified: they are shared between all sources.
+final class DICOMDecodedImageCache extends MemoryLimitedLruCache<DICOMDecodedImageCache.Key, BufferedImage> {
+    private static final DICOMDecodedImageCache INSTANCE = new DICOMDecodedImageCache(
+        maxMemory("com.simagis.pyramid.dicom.decodedImageCacheMemory", 256L * 1024L * 1024L));
+
+    private DICOMDecodedImageCache(long maxMemory) {
+        super("DICOM decoded image cache", maxMemory);
+    }
+
+    public static DICOMDecodedImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    protected long memory(BufferedImage image) {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+            * (DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8);
+    }
+
+    static final class Key {
+        private final String path;
+        private final long fileLength;
+        private final long fileLastModified;
+        private final int imageIndex;
+        private final boolean rawRasterForMonochrome;
+        private final boolean autoWindowing;
+        private final double center;
+        private final double width;
+        private final boolean addAlpha;
+
+        Key(
+            File file,
+            int imageIndex,
+            boolean rawRasterForMonochrome,
+            boolean autoWindowing,
+            double center,
+            double width,
+            boolean addAlpha)
+            throws IOException
+        {
+            assert file != null;
+            final File canonicalFile = file.getCanonicalFile();
+            this.path = canonicalFile.getPath();
+            this.fileLength = canonicalFile.length();
+            this.fileLastModified = canonicalFile.lastModified();
+            this.imageIndex = imageIndex;
+            this.rawRasterForMonochrome = rawRasterForMonochrome;
+            this.autoWindowing = autoWindowing;
+            this.center = center;
+            this.width = width;
+            this.addAlpha = addAlpha;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return fileLength == key.fileLength && fileLastModified == key.fileLastModified
+                && imageIndex == key.imageIndex && rawRasterForMonochrome == key.rawRasterForMonochrome
+                && autoWindowing == key.autoWindowing && addAlpha == key.addAlpha
+                && Double.compare(center, key.center) == 0 && Double.compare(width, key.width) == 0
+                && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (fileLength ^ (fileLength >>> 32));
+            result = 31 * result + (int) (fileLastModified ^ (fileLastModified >>> 32));
+            result = 31 * result + imageIndex;
+            result = 31 * result + (rawRasterForMonochrome ? 1 : 0);
+            result = 31 * result + (autoWindowing ? 1 : 0);
+            long temp = Double.doubleToLongBits(center);
+            result = 31 * result + (int) (temp ^ (temp >>> 32));
+            temp = Double.doubleToLongBits(width);
+            result = 31 * result + (int) (temp ^ (temp >>> 32));
+            result = 31 * result + (addAlpha ? 1 : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return path + ", image #" + imageIndex + (rawRasterForMonochrome ? ", raw" : "")
+                + (autoWindowing ? ", auto windowing" : "") + ", center " + center + ", width " + width
+                + (addAlpha ? ", alpha" : "");
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.simagis.pyramid.dicom.server;
+
+import com.simagis.pyramid.dicom.DICOMWholeSlidePlanePyramidSource;
+import net.algart.simagis.pyramid.PlanePyramidSource;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Header metadata of DICOM file, parsed once and shared by the factory, the reading behaviour and DICOM2Json.
+// Descriptors are kept in memory (while the path, length and modification time of the file stay the same)
+// and in a sidecar properties file, so re-opening the file does not parse its header.
+// Only the header is parsed: reading stops at PixelData.
+// The sidecar files are stored in the directory, specified by the system property
+// "com.simagis.pyramid.dicom.metadataCacheDir"; if it is not set, near the DICOM file;
+// if it is an empty string, sidecar files are not used.
+public final class DICOMFileMetadata {
+    private static final Logger LOGGER = Logger.getLogger(DICOMFileMetadata.class.getName());
+
+    private static final int MAX_CACHED_DESCRIPTORS = 1024;
+    private static final String FILE_LENGTH_PROPERTY = "fileLength";
+    private static final String LAST_MODIFIED_PROPERTY = "lastModified";
+    private static final String PATH_PROPERTY = "path";
+    private static final String SOP_CLASS_UID_PROPERTY = "sopClassUID";
+    private static final String IMAGE_IO_METADATA_PREFIX = "imageIO.";
+
+    private static final Map<String, DICOMFileMetadata> CACHE = new LinkedHashMap<String, DICOMFileMetadata>(
+        16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DICOMFileMetadata> eldest) {
+            return size() > MAX_CACHED_DESCRIPTORS;
+        }
+    };
+
+    private final long fileLength;
+    private final long fileLastModified;
+    private final String sopClassUID; // null if absent
+    private final DICOMImageIOMetadata imageIOMetadata;
+
+    private DICOMFileMetadata(long fileLength, long fileLastModified, DicomObject header) {
+        this(fileLength, fileLastModified, header.getString(Tag.SOPClassUID), new DICOMImageIOMetadata(header, 0));
+    }
+
+    private DICOMFileMetadata(long fileLength, long fileLastModified, String sopClassUID,
+        DICOMImageIOMetadata imageIOMetadata)
+    {
+        this.fileLength = fileLength;
+        this.fileLastModified = fileLastModified;
+        this.sopClassUID = sopClassUID;
+        this.imageIOMetadata = imageIOMetadata;
+    }
+
+    public static DICOMFileMetadata getInstance(File file) throws IOException {
+        return getInstance(file, null, true);
+    }
+
+    // header, if not null, is the already parsed header of the file: it is used instead of parsing;
+    // if !useSidecar, the sidecar file is neither read nor written (the file is processed once)
+    static DICOMFileMetadata getInstance(File file, DicomObject header, boolean useSidecar) throws IOException {
+        final File canonicalFile = file.getCanonicalFile();
+        final String path = canonicalFile.getPath();
+        final long fileLength = canonicalFile.length();
+        final long fileLastModified = canonicalFile.lastModified();
+        synchronized (CACHE) {
+            final DICOMFileMetadata result = CACHE.get(path);
+            if (result != null && result.fileLength == fileLength && result.fileLastModified == fileLastModified) {
+                return result;
+            }
+        }
+        final File propertiesFile = useSidecar ? propertiesFile(canonicalFile) : null;
+        DICOMFileMetadata result = propertiesFile == null ? null :
+            load(propertiesFile, canonicalFile, fileLength, fileLastModified);
+        if (result == null) {
+            result = new DICOMFileMetadata(fileLength, fileLastModified,
+                header != null ? header : readHeader(canonicalFile));
+            if (propertiesFile != null) {
+                store(propertiesFile, canonicalFile, result);
+            }
+        }
+        synchronized (CACHE) {
+            CACHE.put(path, result);
+        }
+        return result;
+    }
+
+    // Parses all tags before PixelData; pixel data are not read.
+    // It is the only parser of DICOM headers in this library: all other classes use it.
+    public static DicomObject readHeader(File file) throws IOException {
+        final DicomInputStream stream = new DicomInputStream(file);
+        try {
+            stream.setHandler(new StopTagInputHandler(Tag.PixelData));
+            final DicomObject result = stream.readDicomObject();
+            if (PlanePyramidSource.DEBUG_LEVEL >= 2) {
+                System.out.println("DICOM header of " + file + " parsed");
+            }
+            return result;
+        } finally {
+            stream.close();
+        }
+    }
+
+    // Returns true if the file is at least 132 bytes and contains "DICM" at the offset 128 (after the preamble):
+    // allows to skip other files without parsing
+    public static boolean hasDicomPreamble(File file) throws IOException {
+        if (!file.isFile() || file.length() < 132) {
+            return false;
+        }
+        final DataInputStream stream = new DataInputStream(new FileInputStream(file));
+        try {
+            final byte[] prefix = new byte[132];
+            stream.readFully(prefix);
+            return prefix[128] == 'D' && prefix[129] == 'I' && prefix[130] == 'C' && prefix[131] == 'M';
+        } finally {
+            stream.close();
+        }
+    }
+
+    public String getSopClassUID() {
+        return sopClassUID;
+    }
+
+    public boolean isWholeSlide() {
+        return DICOMWholeSlidePlanePyramidSource.WHOLE_SLIDE_MICROSCOPY_SOP_CLASS_UID.equals(sopClassUID);
+    }
+
+    public int getNumberOfFrames() {
+        return Math.max(1, imageIOMetadata.getFrames());
+    }
+
+    // Metadata of the first frame: VOI of other frames can be different
+    public DICOMImageIOMetadata getImageIOMetadata() {
+        return imageIOMetadata;
+    }
+
+    @Override
+    public String toString() {
+        return "DICOMFileMetadata{"
+            + "sopClassUID=" + sopClassUID
+            + ", imageIOMetadata=" + imageIOMetadata
+            + '}';
+    }
+
+    // Returns null if there is no valid sidecar file
+    private static DICOMFileMetadata load(File propertiesFile, File file, long fileLength, long fileLastModified) {
+        if (!propertiesFile.isFile()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try {
+            final InputStream stream = new FileInputStream(propertiesFile);
+            try {
+                properties.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read " + propertiesFile, e);
+            return null;
+        }
+        if (!file.getPath().equals(properties.getProperty(PATH_PROPERTY))
+            // - in the common cache directory, names of sidecar files of different DICOM files can coincide
+            || !String.valueOf(fileLength).equals(properties.getProperty(FILE_LENGTH_PROPERTY))
+            || !String.valueOf(fileLastModified).equals(properties.getProperty(LAST_MODIFIED_PROPERTY)))
+        {
+            return null;
+        }
+        try {
+            return new DICOMFileMetadata(fileLength, fileLastModified,
+                properties.getProperty(SOP_CLASS_UID_PROPERTY),
+                new DICOMImageIOMetadata(properties, IMAGE_IO_METADATA_PREFIX));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid " + propertiesFile, e);
+            return null;
+        }
+    }
+
+    // Errors are only logged: the sidecar is not necessary for correct work (for example, the directory
+    // can be read-only)
+    private static void store(File propertiesFile, File file, DICOMFileMetadata metadata) {
+        final Properties properties = new Properties();
+        properties.setProperty(PATH_PROPERTY, file.getPath());
+        properties.setProperty(FILE_LENGTH_PROPERTY, String.valueOf(metadata.fileLength));
+        properties.setProperty(LAST_MODIFIED_PROPERTY, String.valueOf(metadata.fileLastModified));
+        if (metadata.sopClassUID != null) {
+            properties.setProperty(SOP_CLASS_UID_PROPERTY, metadata.sopClassUID);
+        }
+        metadata.imageIOMetadata.store(properties, IMAGE_IO_METADATA_PREFIX);
+        final File tempFile = new File(propertiesFile.getParentFile(), propertiesFile.getName()
+            + "." + Thread.currentThread().getId() + "." + System.nanoTime() + ".tmp");
+        // - unique also between processes, sharing the directory
+        try {
+            propertiesFile.getParentFile().mkdirs();
+            final OutputStream stream = new FileOutputStream(tempFile);
+            try {
+                properties.store(stream, "DICOM metadata of " + file);
+            } finally {
+                stream.close();
+            }
+            if (!tempFile.renameTo(propertiesFile)
+                && !(propertiesFile.delete() && tempFile.renameTo(propertiesFile)))
+            {
+                throw new IOException("Cannot rename " + tempFile + " to " + propertiesFile);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write " + propertiesFile, e);
+            tempFile.delete();
+        }
+    }
+
+    // Returns null if sidecar files are disabled; file must be canonical
+    private static File propertiesFile(File file) {
+        final String cacheDir = System.getProperty("com.simagis.pyramid.dicom.metadataCacheDir");
+        if (cacheDir == null) {
+            return new File(file.getParentFile(), "." + file.getName() + ".dicom.properties");
+        }
+        if (cacheDir.isEmpty()) {
+            return null;
+        }
+        return new File(cacheDir, file.getName() + "." + Integer.toHexString(file.getPath().hashCode())
+            + ".dicom.properties");
+    }
+}
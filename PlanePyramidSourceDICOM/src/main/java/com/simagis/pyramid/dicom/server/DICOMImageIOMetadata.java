@@ -8,6 +8,7 @@ import org.dcm4che2.imageio.plugins.dcm.DicomStreamMetaData;
 
 import javax.imageio.metadata.IIOMetadata;
 import java.awt.image.DataBuffer;
+import java.util.Properties;
 
 public class DICOMImageIOMetadata {
     final int width;
@@ -24,7 +25,10 @@ public class DICOMImageIOMetadata {
     final double voiWidth;
 
     private DICOMImageIOMetadata(DicomStreamMetaData dicomStreamMetaData, int imageIndex) {
-        final DicomObject dicom = dicomStreamMetaData.getDicomObject();
+        this(dicomStreamMetaData.getDicomObject(), imageIndex);
+    }
+
+    DICOMImageIOMetadata(DicomObject dicom, int imageIndex) {
         width = dicom.getInt(Tag.Columns);
         height = dicom.getInt(Tag.Rows);
         frames = dicom.getInt(Tag.NumberOfFrames);
@@ -40,6 +44,38 @@ public class DICOMImageIOMetadata {
         voiWidth = voiObj == null ? 0.0 : voiObj.getFloat(Tag.WindowWidth, 0f);
     }
 
+    // Restores the metadata, stored by store method; throws NumberFormatException if some properties are absent
+    DICOMImageIOMetadata(Properties properties, String prefix) {
+        width = Integer.parseInt(properties.getProperty(prefix + "width"));
+        height = Integer.parseInt(properties.getProperty(prefix + "height"));
+        frames = Integer.parseInt(properties.getProperty(prefix + "frames"));
+        allocated = Integer.parseInt(properties.getProperty(prefix + "allocated"));
+        stored = Integer.parseInt(properties.getProperty(prefix + "stored"));
+        dataType = Integer.parseInt(properties.getProperty(prefix + "dataType"));
+        samples = Integer.parseInt(properties.getProperty(prefix + "samples"));
+        monochrome = Boolean.parseBoolean(properties.getProperty(prefix + "monochrome"));
+        paletteColor = Boolean.parseBoolean(properties.getProperty(prefix + "paletteColor"));
+        banded = Boolean.parseBoolean(properties.getProperty(prefix + "banded"));
+        voiCenter = Double.parseDouble(String.valueOf(properties.getProperty(prefix + "voiCenter")));
+        voiWidth = Double.parseDouble(String.valueOf(properties.getProperty(prefix + "voiWidth")));
+        // - String.valueOf: NumberFormatException instead of NullPointerException for absent properties
+    }
+
+    void store(Properties properties, String prefix) {
+        properties.setProperty(prefix + "width", String.valueOf(width));
+        properties.setProperty(prefix + "height", String.valueOf(height));
+        properties.setProperty(prefix + "frames", String.valueOf(frames));
+        properties.setProperty(prefix + "allocated", String.valueOf(allocated));
+        properties.setProperty(prefix + "stored", String.valueOf(stored));
+        properties.setProperty(prefix + "dataType", String.valueOf(dataType));
+        properties.setProperty(prefix + "samples", String.valueOf(samples));
+        properties.setProperty(prefix + "monochrome", String.valueOf(monochrome));
+        properties.setProperty(prefix + "paletteColor", String.valueOf(paletteColor));
+        properties.setProperty(prefix + "banded", String.valueOf(banded));
+        properties.setProperty(prefix + "voiCenter", String.valueOf(voiCenter));
+        properties.setProperty(prefix + "voiWidth", String.valueOf(voiWidth));
+    }
+
     public static DICOMImageIOMetadata getInstance(DicomStreamMetaData metadata, int imageIndex) {
         return new DICOMImageIOMetadata(metadata, imageIndex);
     }
@@ -1,5 +1,6 @@
 package com.simagis.pyramid.dicom.server;
 
+import com.simagis.pyramid.dicom.DICOMWholeSlidePlanePyramidSource;
 import net.algart.simagis.live.json.minimal.SimagisLiveUtils;
 import net.algart.simagis.pyramid.PlanePyramidSource;
 import net.algart.simagis.pyramid.PlanePyramidSourceFactory;
@@ -18,11 +19,18 @@ public class DICOMImageIOPlanePyramidSourceFactory implements PlanePyramidSource
         String renderingConfiguration)
         throws IOException
     {
+        final File file = new File(pyramidPath);
+        final DICOMFileMetadata metadata = DICOMFileMetadata.getInstance(file);
+        if (metadata.isWholeSlide()) {
+            // tiled multi-frame instances: reading frames, necessary for the requested area, from all levels
+            return new DICOMWholeSlidePlanePyramidSource(null, file);
+        }
         final JSONObject renderingJson = SimagisLiveUtils.configurationStringToJson(renderingConfiguration);
         final JSONObject dicomRenderingJson = SimagisLiveUtils.openObject(renderingJson, "DICOM");
         final JSONObject centerWindowJson = dicomRenderingJson.optJSONObject("cw");
         boolean pngFormat = renderingJson.optString("format").equals("png");
         final DICOMImageIOReadingBehaviour behaviour = new DICOMImageIOReadingBehaviour();
+        behaviour.setFile(file); // enables DICOMDecodedImageCache
         behaviour.setAddAlphaWhenExist(pngFormat);
         behaviour.setImageIndex(renderingJson.optInt("imageIndex", behaviour.getImageIndex()));
         behaviour.setRawRasterForMonochrome(dicomRenderingJson.optBoolean("rawRasterForMonochrome",
@@ -32,10 +40,14 @@ public class DICOMImageIOPlanePyramidSourceFactory implements PlanePyramidSource
             behaviour.setCenter(centerWindowJson.optDouble("center", behaviour.getCenter()));
             behaviour.setWidth(centerWindowJson.optDouble("width", behaviour.getWidth()));
         }
+        if (metadata.getNumberOfFrames() > 1) {
+            // one frame of cine, etc.: the parsed file is shared by the sources of all frames
+            return new DICOMMultiFramePlanePyramidSource(null, file, behaviour);
+        }
         return new ImageIOPlanePyramidSource(
             null, // i.e. SimpleMemoryModel by default
-            null, // no cache
-            new File(pyramidPath),
+            null, // no cache: decoded images are cached by the behaviour
+            file,
             behaviour);
     }
 }
@@ -9,6 +9,7 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import java.awt.color.ColorSpace;
 import java.awt.image.*;
+import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 
@@ -18,6 +19,8 @@ final class DICOMImageIOReadingBehaviour extends ImageIOPlanePyramidSource.Image
     private boolean autoWindowing = true; // should be true for auto-detection of both center and width
     private double center = 0.0;
     private double width = 0.0; // should be 0.0 for auto-detection of both center and width
+    private File file = null;
+    // - if not null, decoded images are cached in DICOMDecodedImageCache, and metadata are got from DICOMFileMetadata
 
     public DICOMImageIOReadingBehaviour() {
         setDicomReader(true);
@@ -55,6 +58,14 @@ final class DICOMImageIOReadingBehaviour extends ImageIOPlanePyramidSource.Image
         this.width = width;
     }
 
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
     @Override
     public ImageIOPlanePyramidSource.ImageIOReadingBehaviour setDicomReader(boolean dicomReader) {
         if (!dicomReader)
@@ -76,8 +87,44 @@ final class DICOMImageIOReadingBehaviour extends ImageIOPlanePyramidSource.Image
 
     @Override
     protected BufferedImage readBufferedImageByReader(ImageReader reader, ImageReadParam param) throws IOException {
-        final DICOMImageIOMetadata dicomImageIOMetadata =
+        final DICOMDecodedImageCache cache = DICOMDecodedImageCache.getInstance();
+        if (file == null || !cache.isEnabled()) {
+            return decodeBufferedImage(reader, param);
+        }
+        final DICOMDecodedImageCache.Key key = cacheKey();
+        BufferedImage result = cache.get(key);
+        if (result != null) {
+            if (PlanePyramidSource.DEBUG_LEVEL >= 2) {
+                System.out.println(DICOMImageIOReadingBehaviour.class.getSimpleName() + " found " + key
+                    + " in " + cache);
+            }
+            return result;
+        }
+        result = decodeBufferedImage(reader, param);
+        cache.put(key, result);
+        return result;
+    }
+
+    // Returns the image, decoded earlier with the same parameters, or null if it is not cached:
+    // allows to avoid opening the file for cached images
+    BufferedImage cachedBufferedImage() throws IOException {
+        final DICOMDecodedImageCache cache = DICOMDecodedImageCache.getInstance();
+        if (file == null || !cache.isEnabled()) {
+            return null;
+        }
+        return cache.get(cacheKey());
+    }
+
+    private DICOMDecodedImageCache.Key cacheKey() throws IOException {
+        return new DICOMDecodedImageCache.Key(
+            file, imageIndex, rawRasterForMonochrome, autoWindowing, center, width, isAddAlphaWhenExist());
+    }
+
+    private BufferedImage decodeBufferedImage(ImageReader reader, ImageReadParam param) throws IOException {
+        final DICOMImageIOMetadata dicomImageIOMetadata = file != null ?
+            DICOMFileMetadata.getInstance(file).getImageIOMetadata() :
             DICOMImageIOMetadata.getInstance(reader.getStreamMetadata(), imageIndex);
+        // - the file descriptor is parsed once; VOI of other frames is not used here
         if (PlanePyramidSource.DEBUG_LEVEL >= 1) {
             System.out.println(DICOMImageIOReadingBehaviour.class.getSimpleName()
                 + " will read DICOM image with the following metadata: " + dicomImageIOMetadata);
@@ -129,6 +176,7 @@ final class DICOMImageIOReadingBehaviour extends ImageIOPlanePyramidSource.Image
             + ", autoWindowing=" + autoWindowing
             + ", center=" + center
             + ", width=" + width
+            + ", file=" + file
             + '}';
     }
 }
@@ -0,0 +1,208 @@
+package com.simagis.pyramid.dicom.server;
+
+import net.algart.arrays.*;
+import net.algart.simagis.pyramid.AbstractPlanePyramidSource;
+import net.algart.simagis.pyramid.PlanePyramidTools;
+
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+// One frame of a multi-frame DICOM file, read by the reader, shared by all frames of the file
+// (see DICOMSharedImageReader): creating the source for another frame does not re-open the file.
+// The frame is decoded once in the constructor (or taken from DICOMDecodedImageCache); level #0 is read
+// directly from the decoded image without copying it, coarser levels are calculated by averaging when necessary.
+final class DICOMMultiFramePlanePyramidSource extends AbstractPlanePyramidSource {
+    private static final int MIN_PYRAMID_LEVEL_SIDE = 256;
+
+    private final File file;
+    private final int frameIndex;
+    private final BufferedImage image;
+    // - shared with DICOMDecodedImageCache and must not be modified
+    private final boolean addAlpha;
+    private final Class<?> elementType;
+    private final int bandCount;
+    private final long dimX;
+    private final long dimY;
+    private final int numberOfResolutions;
+    private final Matrix<? extends PArray>[] levels;
+    // - levels[0] is not used
+
+    @SuppressWarnings("unchecked")
+    DICOMMultiFramePlanePyramidSource(ArrayContext context, File file, DICOMImageIOReadingBehaviour behaviour)
+        throws IOException
+    {
+        super(context);
+        if (file == null || behaviour == null) {
+            throw new NullPointerException("Null file or behaviour");
+        }
+        this.file = file;
+        this.frameIndex = behaviour.getImageIndex();
+        BufferedImage image = behaviour.cachedBufferedImage();
+        if (image == null) {
+            // the shared reader is acquired only when decoding is really necessary
+            final DICOMSharedImageReader reader = DICOMSharedImageReader.acquire(file);
+            try {
+                image = reader.read(behaviour);
+            } finally {
+                reader.release();
+            }
+        }
+        this.image = image;
+        this.addAlpha = behaviour.isAddAlphaWhenExist();
+        this.elementType = elementType(image);
+        this.bandCount = bandCount(image, addAlpha);
+        this.dimX = image.getWidth();
+        this.dimY = image.getHeight();
+        this.numberOfResolutions = PlanePyramidTools.numberOfResolutions(
+            dimX, dimY, DEFAULT_COMPRESSION, MIN_PYRAMID_LEVEL_SIDE);
+        this.levels = new Matrix[numberOfResolutions];
+        debug(1, "DICOM multi-frame source reads frame #%d of %s: %dx%dx%d %s, %d levels%n",
+            frameIndex, file, bandCount, dimX, dimY, elementType, numberOfResolutions);
+    }
+
+    @Override
+    public int numberOfResolutions() {
+        return numberOfResolutions;
+    }
+
+    @Override
+    public int compression() {
+        return DEFAULT_COMPRESSION;
+    }
+
+    @Override
+    public int bandCount() {
+        return bandCount;
+    }
+
+    @Override
+    public long[] dimensions(int resolutionLevel) throws NoSuchElementException {
+        if (resolutionLevel < 0 || resolutionLevel >= numberOfResolutions) {
+            throw new NoSuchElementException("No resolution level #" + resolutionLevel);
+        }
+        return new long[] {bandCount, dimX >> resolutionLevel, dimY >> resolutionLevel};
+    }
+
+    @Override
+    protected Matrix<? extends PArray> readLittleSubMatrix(
+        int resolutionLevel, long fromX, long fromY, long toX, long toY)
+    {
+        final long[] dim = dimensions(resolutionLevel);
+        final long dimX = dim[DIM_WIDTH];
+        final long dimY = dim[DIM_HEIGHT];
+        if (fromX < 0 || fromY < 0 || fromX > toX || fromY > toY || toX > dimX || toY > dimY) {
+            throw new IndexOutOfBoundsException("Illegal fromX/fromY/toX/toY: must be in ranges 0.."
+                + dimX + ", 0.." + dimY + ", fromX<=toX, fromY<=toY");
+        }
+        if (fromX == toX || fromY == toY) {
+            final Object empty = java.lang.reflect.Array.newInstance(elementType, 0);
+            return Matrices.matrix((PArray) SimpleMemoryModel.asUpdatableArray(empty),
+                bandCount, toX - fromX, toY - fromY);
+        }
+        if (resolutionLevel == 0) {
+            return toMatrix(image.getSubimage((int) fromX, (int) fromY, (int) (toX - fromX), (int) (toY - fromY)),
+                addAlpha);
+        }
+        final Matrix<? extends PArray> level = level(resolutionLevel);
+        return Matrices.clone(level.subMatrix(0, fromX, fromY, bandCount, toX, toY));
+    }
+
+    @Override
+    public String toString() {
+        return "DICOM multi-frame pyramid source for frame #" + frameIndex + " of " + file;
+    }
+
+    // Coarser levels are averaged from level #1, so the full copy of level #0 is necessary only once
+    private Matrix<? extends PArray> level(int resolutionLevel) {
+        assert resolutionLevel > 0;
+        synchronized (levels) {
+            if (levels[resolutionLevel] == null) {
+                final Matrix<? extends PArray> source = resolutionLevel == 1 ? toMatrix(image, addAlpha) : level(1);
+                levels[resolutionLevel] = Matrices.clone(Matrices.asResized(
+                    Matrices.ResizingMethod.AVERAGING, source, dimensions(resolutionLevel)));
+            }
+            return levels[resolutionLevel];
+        }
+    }
+
+    // Must agree with toMatrix
+    private static Class<?> elementType(BufferedImage image) {
+        if (!isComponentImage(image)) {
+            return byte.class;
+        }
+        final int bitsPerSample = bitsPerSample(image.getRaster());
+        return bitsPerSample <= 8 ? byte.class : bitsPerSample <= 16 ? short.class : int.class;
+    }
+
+    // Must agree with toMatrix
+    private static int bandCount(BufferedImage image, boolean addAlpha) {
+        if (!isComponentImage(image)) {
+            return addAlpha && image.getColorModel().hasAlpha() ? 4 : 3;
+        }
+        final int numBands = image.getRaster().getNumBands();
+        return image.getColorModel().hasAlpha() && !addAlpha && numBands > 1 ? numBands - 1 : numBands;
+    }
+
+    private static boolean isComponentImage(BufferedImage image) {
+        final ColorModel colorModel = image.getColorModel();
+        return colorModel instanceof ComponentColorModel || colorModel instanceof DirectColorModel;
+    }
+
+    // For example, 8 for packed RGB, where getPixels unpacks every sample into separate int
+    private static int bitsPerSample(Raster raster) {
+        int result = 0;
+        for (int sampleSize : raster.getSampleModel().getSampleSize()) {
+            result = Math.max(result, sampleSize);
+        }
+        return result;
+    }
+
+    // Interleaved samples of the image: raw values for component images (including raw monochrome rasters),
+    // RGB for indexed and other images
+    private static Matrix<? extends PArray> toMatrix(BufferedImage image, boolean addAlpha) {
+        final ColorModel colorModel = image.getColorModel();
+        if (!isComponentImage(image)) {
+            final BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+                addAlpha && colorModel.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            rgb.getGraphics().drawImage(image, 0, 0, null);
+            image = rgb;
+        }
+        final Raster raster = image.getRaster();
+        final int sizeX = raster.getWidth();
+        final int sizeY = raster.getHeight();
+        final int numBands = raster.getNumBands();
+        final int bandCount = bandCount(image, addAlpha);
+        final int[] samples = raster.getPixels(raster.getMinX(), raster.getMinY(), sizeX, sizeY, (int[]) null);
+        final int n = sizeX * sizeY;
+        final int bitsPerSample = bitsPerSample(raster);
+        final Object result;
+        if (bitsPerSample <= 8) {
+            final byte[] bytes = new byte[n * bandCount];
+            for (int k = 0, disp = 0; k < n; k++) {
+                for (int b = 0; b < bandCount; b++) {
+                    bytes[disp++] = (byte) samples[k * numBands + b];
+                }
+            }
+            result = bytes;
+        } else if (bitsPerSample <= 16) {
+            final short[] shorts = new short[n * bandCount];
+            for (int k = 0, disp = 0; k < n; k++) {
+                for (int b = 0; b < bandCount; b++) {
+                    shorts[disp++] = (short) samples[k * numBands + b];
+                }
+            }
+            result = shorts;
+        } else {
+            final int[] ints = new int[n * bandCount];
+            for (int k = 0, disp = 0; k < n; k++) {
+                for (int b = 0; b < bandCount; b++) {
+                    ints[disp++] = samples[k * numBands + b];
+                }
+            }
+            result = ints;
+        }
+        return Matrices.matrix((PArray) SimpleMemoryModel.asUpdatableArray(result), bandCount, sizeX, sizeY);
+    }
+}
@@ -0,0 +1,197 @@
+package com.simagis.pyramid.dicom.server;
+
+import net.algart.simagis.pyramid.PlanePyramidSource;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One DICOM ImageIO reader with its open stream per file, shared by all sources of this file in the JVM.
+// The reader parses the header once and remembers the positions of frames: the offset of a native frame
+// is calculated from the frame size, the fragments of encapsulated pixel data are indexed (from the Basic
+// Offset Table or by one scan of the items) when first necessary. So, switching to another frame
+// costs one frame decoding instead of re-opening and re-parsing the file.
+// The reader is closed after IDLE_TIMEOUT since the last release, or when the file is modified.
+final class DICOMSharedImageReader {
+    private static final long IDLE_TIMEOUT = 60000; // ms
+
+    private static final Map<File, DICOMSharedImageReader> INSTANCES = new HashMap<File, DICOMSharedImageReader>();
+
+    private static final ScheduledExecutorService CLOSER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread result = new Thread(r, "DICOMSharedImageReader closer");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+
+    private final File file;
+    private final long fileLength;
+    private final long fileLastModified;
+    private final ImageInputStream stream;
+    private final ImageReader reader;
+    private final Lock readingLock = new ReentrantLock();
+    // - ImageReader is not thread-safe
+    private int references = 0; // guarded by INSTANCES
+    private long lastRelease = 0; // guarded by INSTANCES
+    private boolean closed = false; // guarded by INSTANCES
+    private boolean closingScheduled = false; // guarded by INSTANCES
+
+    private DICOMSharedImageReader(File file) throws IOException {
+        this.file = file;
+        this.fileLength = file.length();
+        this.fileLastModified = file.lastModified();
+        final Iterator<ImageReader> iterator = ImageIO.getImageReadersByFormatName("DICOM");
+        if (!iterator.hasNext()) {
+            throw new IOException("DICOM ImageIO reader is not installed");
+        }
+        this.stream = ImageIO.createImageInputStream(file);
+        if (stream == null) {
+            throw new FileNotFoundException("Cannot open " + file);
+        }
+        this.reader = iterator.next();
+        this.reader.setInput(stream, false);
+        // - not seekForwardOnly: frames are read in any order
+    }
+
+    // The result must be released by release() method
+    static DICOMSharedImageReader acquire(File file) throws IOException {
+        final File key = file.getCanonicalFile();
+        DICOMSharedImageReader result;
+        synchronized (INSTANCES) {
+            result = INSTANCES.get(key);
+            if (result != null && result.isActual(key.length(), key.lastModified())) {
+                result.references++;
+                return result;
+            }
+        }
+        // opening the file and creating the reader without synchronization: other files are not blocked
+        final DICOMSharedImageReader created = new DICOMSharedImageReader(key);
+        DICOMSharedImageReader obsolete = null;
+        DICOMSharedImageReader unnecessary = null;
+        synchronized (INSTANCES) {
+            result = INSTANCES.get(key);
+            if (result != null && result.isActual(created.fileLength, created.fileLastModified)) {
+                unnecessary = created; // another thread has created the reader at the same time
+            } else {
+                if (result != null) {
+                    INSTANCES.remove(key);
+                    result.closed = true;
+                    if (result.references == 0) {
+                        obsolete = result;
+                    }
+                    // - otherwise, it will be closed by the last release
+                }
+                result = created;
+                INSTANCES.put(key, result);
+                if (PlanePyramidSource.DEBUG_LEVEL >= 2) {
+                    System.out.println("DICOM shared reader opened for " + key);
+                }
+            }
+            result.references++;
+        }
+        if (obsolete != null) {
+            obsolete.close();
+        }
+        if (unnecessary != null) {
+            unnecessary.close();
+        }
+        return result;
+    }
+
+    void release() {
+        boolean closeNow = false;
+        synchronized (INSTANCES) {
+            if (references <= 0) {
+                throw new IllegalStateException("DICOM shared reader for " + file + " is already released");
+            }
+            references--;
+            lastRelease = System.currentTimeMillis();
+            if (references == 0) {
+                if (closed) {
+                    closeNow = true;
+                } else {
+                    scheduleClosing();
+                }
+            }
+        }
+        if (closeNow) {
+            close();
+        }
+    }
+
+    // Returns false if the file was modified after opening this reader
+    private boolean isActual(long fileLength, long fileLastModified) {
+        return this.fileLength == fileLength && this.fileLastModified == fileLastModified;
+    }
+
+    // Reads the frame behaviour.getImageIndex() with decoding parameters of the behaviour
+    BufferedImage read(DICOMImageIOReadingBehaviour behaviour) throws IOException {
+        readingLock.lock();
+        try {
+            return behaviour.readBufferedImageByReader(reader, behaviour.getReadParam(reader));
+        } finally {
+            readingLock.unlock();
+        }
+    }
+
+    // must be called under synchronization by INSTANCES
+    private void scheduleClosing() {
+        if (closingScheduled) {
+            return;
+        }
+        closingScheduled = true;
+        CLOSER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeIfIdle();
+            }
+        }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeIfIdle() {
+        synchronized (INSTANCES) {
+            closingScheduled = false;
+            if (closed || references > 0) {
+                return;
+            }
+            if (System.currentTimeMillis() - lastRelease < IDLE_TIMEOUT) {
+                scheduleClosing(); // it was used again after scheduling
+                return;
+            }
+            closed = true;
+            INSTANCES.remove(file);
+        }
+        close();
+    }
+
+    private void close() {
+        if (PlanePyramidSource.DEBUG_LEVEL >= 2) {
+            System.out.println("DICOM shared reader closing for " + file);
+        }
+        readingLock.lock();
+        try {
+            reader.dispose();
+            stream.close();
+        } catch (IOException e) {
+            // nothing to do: the reader is not used more
+        } finally {
+            readingLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.simagis.pyramid.openslide;
+
+import com.simagis.pyramid.common.MemoryLimitedLruCache;
+import net.algart.arrays.Matrix;
+import net.algart.arrays.PArray;
+
+// Process-wide LRU cache of decoded associated images (label, macro, thumbnail), shared by all sources in this JVM.
+// The key is quickhash-1 of the slide, the name of the associated image and the description of compositing
+// transparent pixels with the background (see OpenSlidePlanePyramidSource), so the images are decoded
+// only once even when the slide is opened again and again. The total size of cached images is limited
+// by the system property "com.simagis.pyramid.openslide.associatedImageCacheMemory" (32 MB by default).
+final class OpenSlideAssociatedImageCache extends MemoryLimitedLruCache<String, Matrix<? extends PArray>> {
+    private static final OpenSlideAssociatedImageCache INSTANCE = new OpenSlideAssociatedImageCache(
+        maxMemory("com.simagis.pyramid.openslide.associatedImageCacheMemory", 32L * 1024L * 1024L));
+
+    private OpenSlideAssociatedImageCache(long maxMemory) {
+        super("OpenSlide associated image cache", maxMemory);
+    }
+
+    public static OpenSlideAssociatedImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    public Matrix<? extends PArray> get(String slideId, String imageName, String compositing) {
+        return get(key(slideId, imageName, compositing));
+    }
+
+    // image should be immutable: it is shared between all sources
+    public void put(
+        String slideId, String imageName, String compositing,
+        Matrix<? extends PArray> image)
+    {
+        put(key(slideId, imageName, compositing), image);
+    }
+
+    @Override
+    protected long memory(Matrix<? extends PArray> image) {
+        return image.size(); // byte matrices only
+    }
+
+    private static String key(String slideId, String imageName, String compositing) {
+        return slideId + "/" + imageName + "/" + compositing;
+    }
+}
@@ -1,23 +1,53 @@
 package com.simagis.pyramid.openslide;
 
 import net.algart.arrays.*;
+import net.algart.math.IPoint;
+import net.algart.math.IRectangularArea;
+import net.algart.math.functions.AbstractFunc;
+import net.algart.math.functions.Func;
 import net.algart.simagis.pyramid.AbstractPlanePyramidSource;
 import net.algart.simagis.pyramid.PlanePyramidSource;
 import net.algart.simagis.pyramid.PlanePyramidTools;
 import org.openslide.OpenSlide;
+import org.openslide.OpenSlideDisposedException;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
+import java.nio.channels.NotYetConnectedException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSource implements PlanePyramidSource {
     private static final int DEBUG_LEVEL = 1;
     private static final double INV_255 = 1.0 / 255.0;
+    private static final int MAX_REUSED_PACKED_BUFFER_LENGTH = 2048 * 2048;
+    // - 16 MB per reading thread; larger regions are rare and use a temporary buffer
+    private static final int MAX_CACHED_TILE_SIZE = 1024 * 1024;
+    // - larger "tiles" are usually strips or whole levels of non-tiled formats: no sense to cache them
+    private static final double LEVEL_DOWNSAMPLE_TOLERANCE = 0.01;
+    // - OpenSlide downsamples like 4.0003 (rounded level sizes) are considered to be equal to 4
+    private static final int MAX_RESAMPLED_STRIP_LENGTH = 2048 * 2048;
+    // - number of pixels of OpenSlide level, read at once while resampling
+
+    private static final ThreadLocal<int[]> PACKED_BUFFER = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
+    private static final ThreadLocal<ResamplingBuffers> RESAMPLING_BUFFERS = new ThreadLocal<ResamplingBuffers>() {
+        @Override
+        protected ResamplingBuffers initialValue() {
+            return new ResamplingBuffers();
+        }
+    };
 
     private final File imageFile;
     private final int compression;
@@ -29,9 +59,27 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
     private final long dimY;
     private final int bandCount;
     private final List<long[]> dimensions;
-    private final Map<String, String> properties;
+    private volatile Map<String, String> properties = null; // loaded lazily: usually hundreds of JNI calls
+    private final Double pixelSizeInMicrons;
+    private final Double magnification;
+    private final String slideId; // quickhash-1 or the file name: the key of the slide in OpenSlideTileCache
+    private final long[] nativeDimX; // OpenSlide levels
+    private final long[] nativeDimY;
+    private final double[] nativeDownsamples;
+    private final int[] openSlideLevels; // resolution level -> OpenSlide level
+    private final double[] openSlideLevelRatios; // resolution level -> downsample relative to OpenSlide level
+    private final int[] nativeTileWidths; // 0 if unknown
+    private final int[] nativeTileHeights; // 0 if unknown
+    private final BitSet[] backgroundTiles; // native tiles, known to contain background only; null if no tiles
+    private final Func backgroundFunc; // band index -> background value
+    private final long boundsX, boundsY, boundsWidth, boundsHeight; // scanned area at level 0; all 0 if unknown
+    private final Set<String> associatedImageNames;
     private final LargeDataHolder largeData = new LargeDataHolder();
 
+    private volatile boolean concurrentReading = true;
+    private volatile int maxNumberOfOpenSlideHandles = 1;
+    private volatile boolean tileCaching = true;
+
     public OpenSlidePlanePyramidSource(File imageFile) throws IOException {
         this(null, imageFile);
     }
@@ -59,45 +107,98 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
         try {
             this.dimX = largeData.openSlide.getLevel0Width();
             this.dimY = largeData.openSlide.getLevel0Height();
-            this.properties = new TreeMap<>(largeData.openSlide.getProperties());
             this.bandCount = 3; // maybe, in future here will be better code
-            debug(1, "OpenSlide opens image %s: %dx%d, %d bands%n",
-                imageFile, dimX, dimY, bandCount);
-            long lastDimX = this.dimX;
-            long lastDimY = this.dimY;
-            int maxUsedNumberOfResolutions = Math.max(1, largeData.openSlide.getLevelCount());
+            this.associatedImageNames = new TreeSet<>(largeData.openSlide.getAssociatedImages().keySet());
+            final String quickHash = largeData.openSlide.getProperty(OpenSlide.PROPERTY_NAME_QUICKHASH1);
+            this.slideId = quickHash != null ? quickHash :
+                imageFile.getAbsolutePath() + ":" + imageFile.lastModified();
+            final int levelCount = largeData.openSlide.getLevelCount();
+            this.nativeTileWidths = new int[levelCount];
+            this.nativeTileHeights = new int[levelCount];
+            for (int k = 0; k < levelCount; k++) {
+                final Double tileWidth = parseDoubleIfPossible(largeData.openSlide.getProperty("openslide.level[" + k + "].tile-width"));
+                final Double tileHeight = parseDoubleIfPossible(largeData.openSlide.getProperty("openslide.level[" + k + "].tile-height"));
+                if (tileWidth != null && tileHeight != null && tileWidth >= 1.0 && tileHeight >= 1.0
+                    && tileWidth * tileHeight <= Integer.MAX_VALUE)
+                {
+                    nativeTileWidths[k] = tileWidth.intValue();
+                    nativeTileHeights[k] = tileHeight.intValue();
+                }
+                debug(1, "OpenSlide native tiles at level #%d: %dx%d%n", k, nativeTileWidths[k], nativeTileHeights[k]);
+            }
+            final Double boundsX = parseDoubleIfPossible(largeData.openSlide.getProperty(OpenSlide.PROPERTY_NAME_BOUNDS_X));
+            final Double boundsY = parseDoubleIfPossible(largeData.openSlide.getProperty(OpenSlide.PROPERTY_NAME_BOUNDS_Y));
+            final Double boundsWidth = parseDoubleIfPossible(largeData.openSlide.getProperty(OpenSlide.PROPERTY_NAME_BOUNDS_WIDTH));
+            final Double boundsHeight = parseDoubleIfPossible(largeData.openSlide.getProperty(OpenSlide.PROPERTY_NAME_BOUNDS_HEIGHT));
+            if (boundsX != null && boundsY != null && boundsWidth != null && boundsHeight != null
+                && boundsWidth >= 1.0 && boundsHeight >= 1.0)
+            {
+                this.boundsX = Math.max(0, boundsX.longValue());
+                this.boundsY = Math.max(0, boundsY.longValue());
+                this.boundsWidth = Math.min(boundsWidth.longValue(), dimX - this.boundsX);
+                this.boundsHeight = Math.min(boundsHeight.longValue(), dimY - this.boundsY);
+            } else {
+                this.boundsX = this.boundsY = this.boundsWidth = this.boundsHeight = 0;
+            }
+            final Double mppX = parseDoubleIfPossible(largeData.openSlide.getProperty("openslide.mpp-x"));
+            this.pixelSizeInMicrons = mppX != null ? mppX :
+                parseDoubleIfPossible(largeData.openSlide.getProperty("openslide.mpp-y"));
+            this.magnification = parseDoubleIfPossible(largeData.openSlide.getProperty("openslide.objective-power"));
+            debug(1, "OpenSlide opens image %s: %dx%d, %d bands, bounds %d..%d x %d..%d, associated images %s%n",
+                imageFile, dimX, dimY, bandCount,
+                this.boundsX, this.boundsX + this.boundsWidth, this.boundsY, this.boundsY + this.boundsHeight,
+                associatedImageNames);
+            this.nativeDimX = new long[levelCount];
+            this.nativeDimY = new long[levelCount];
+            this.nativeDownsamples = new double[levelCount];
+            for (int k = 0; k < levelCount; k++) {
+                nativeDimX[k] = largeData.openSlide.getLevelWidth(k);
+                nativeDimY[k] = largeData.openSlide.getLevelHeight(k);
+                nativeDownsamples[k] = largeData.openSlide.getLevelDownsample(k);
+                debug(1, "OpenSlide checks layer #%d: %dx%d, downsample %.4f%n",
+                    k, nativeDimX[k], nativeDimY[k], nativeDownsamples[k]);
+            }
+            this.compression = chooseCompression(bandCount, nativeDimX, nativeDimY, nativeDownsamples);
+            debug(1, "OpenSlide automatically detected compression %d%n", compression);
+            // Every resolution level has the exact compression ratio; it is read from the best OpenSlide level,
+            // with resampling if that level has another downsample (for example, scanners with 4x levels
+            // or non-integer ratios). Coarser levels are added while OpenSlide has suitable levels for them.
             this.dimensions = new ArrayList<>();
-            this.dimensions.add(new long[] {bandCount, this.dimX, this.dimY});
-            int compression = 0;
-            for (int k = 1; k < maxUsedNumberOfResolutions; k++) {
-                final long newDimX = largeData.openSlide.getLevelWidth(k);
-                final long newDimY = largeData.openSlide.getLevelHeight(k);
-                debug(1, "OpenSlide checks layer #%d: %dx%d%n", k, newDimX, newDimY);
-                if (compression == 0) {
-                    compression = PlanePyramidTools.findCompression(
-                        new long[] {bandCount, lastDimX, lastDimY},
-                        new long[] {bandCount, newDimX, newDimY});
-                    if (compression == 0) {
-                        throw new IllegalArgumentException("Cannot find suitable compression for first "
-                            + "two levels " + lastDimX + "x" + lastDimY + " and " + newDimX + "x" + newDimY);
+            final List<Integer> levels = new ArrayList<>();
+            final List<Double> ratios = new ArrayList<>();
+            long levelDimX = this.dimX;
+            long levelDimY = this.dimY;
+            double levelDownsample = 1.0;
+            for (int r = 0; ; r++) {
+                if (r > 0) {
+                    levelDimX /= compression;
+                    levelDimY /= compression;
+                    levelDownsample *= compression;
+                    if (levelDimX == 0 || levelDimY == 0
+                        || (levelDimX < minPyramidLevelSide && levelDimY < minPyramidLevelSide))
+                    {
+                        break;
                     }
-                    debug(1, "OpenSlide automatically detected compression %d%n", compression);
                 }
-                if (newDimX < minPyramidLevelSide && newDimY < minPyramidLevelSide) {
-                    break;
+                final int level = bestOpenSlideLevel(levelDownsample);
+                double ratio = levelDownsample / nativeDownsamples[level];
+                if (Math.abs(ratio - 1.0) <= LEVEL_DOWNSAMPLE_TOLERANCE) {
+                    ratio = 1.0;
+                } else if (ratio > compression * (1.0 + LEVEL_DOWNSAMPLE_TOLERANCE)) {
+                    break; // no suitable OpenSlide level: the pyramid engine will do better
                 }
-                if (!PlanePyramidTools.isDimensionsRelationCorrect(
-                    new long[] {bandCount, lastDimX, lastDimY},
-                    new long[] {bandCount, newDimX, newDimY},
-                    compression))
-                {
-                    break;
-                }
-                lastDimX = newDimX;
-                lastDimY = newDimY;
-                this.dimensions.add(new long[] {bandCount, newDimX, newDimY});
+                this.dimensions.add(new long[] {bandCount, levelDimX, levelDimY});
+                levels.add(level);
+                ratios.add(ratio);
+                debug(1, "OpenSlide maps resolution #%d (%dx%d) to layer #%d, resampling %.4f%n",
+                    r, levelDimX, levelDimY, level, ratio);
+            }
+            this.openSlideLevels = new int[levels.size()];
+            this.openSlideLevelRatios = new double[ratios.size()];
+            for (int r = 0; r < openSlideLevels.length; r++) {
+                openSlideLevels[r] = levels.get(r);
+                openSlideLevelRatios[r] = ratios.get(r);
             }
-            this.compression = compression == 0 ? PlanePyramidSource.DEFAULT_COMPRESSION : compression;
             this.numberOfResolutions = this.dimensions.size();
             this.useAlphaForBackground = backgroundColor != null;
             if (this.useAlphaForBackground) {
@@ -110,7 +211,22 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
                 this.backgroundBlue = -1;
             }
             this.maxAlphaForEnforcingBackground = (int) Math.round(maxAlphaForEnforcingBackground * 255.0);
-            debug(1, "OpenSlide found %d layers with correct compression among %d total layers%n",
+            this.backgroundFunc = new BackgroundFunc(this.useAlphaForBackground ?
+                new double[] {backgroundRed, backgroundGreen, backgroundBlue} :
+                new double[] {0.0, 0.0, 0.0});
+            this.backgroundTiles = new BitSet[levelCount];
+            for (int k = 0; k < levelCount; k++) {
+                if (nativeTileWidths[k] > 0 && nativeTileHeights[k] > 0) {
+                    final long tilesX = (largeData.openSlide.getLevelWidth(k) + nativeTileWidths[k] - 1)
+                        / nativeTileWidths[k];
+                    final long tilesY = (largeData.openSlide.getLevelHeight(k) + nativeTileHeights[k] - 1)
+                        / nativeTileHeights[k];
+                    if (tilesX * tilesY <= Integer.MAX_VALUE) {
+                        this.backgroundTiles[k] = new BitSet();
+                    }
+                }
+            }
+            debug(1, "OpenSlide found %d resolutions for %d total layers%n",
                 this.numberOfResolutions, largeData.openSlide.getLevelCount());
             debug(1, "OpenSlide instantiating %s%n", this);
             success = true;
@@ -130,7 +246,24 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
     }
 
     public Map<String, String> getProperties() {
-        return Collections.unmodifiableMap(properties);
+        Map<String, String> result = properties;
+        if (result == null) {
+            try {
+                OpenSlide openSlide = largeData.sharedHandle();
+                try {
+                    result = Collections.unmodifiableMap(new TreeMap<>(openSlide.getProperties()));
+                } catch (OpenSlideDisposedException e) {
+                    // freeResources() was called in a parallel thread
+                    openSlide = largeData.sharedHandle();
+                    result = Collections.unmodifiableMap(new TreeMap<>(openSlide.getProperties()));
+                }
+                debug(1, "OpenSlide properties loaded: %s%n", openSlide.getOpeningTimeInfo());
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+            properties = result;
+        }
+        return result;
     }
 
     public int numberOfResolutions() {
@@ -147,13 +280,52 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
 
     @Override
     public Double pixelSizeInMicrons() {
-        final Double mppx = parseDoubleIfPossible(properties.get("openslide.mpp-x"));
-        return mppx != null ? mppx : parseDoubleIfPossible(properties.get("openslide.mpp-y"));
+        return pixelSizeInMicrons;
     }
 
     @Override
     public Double magnification() {
-        return parseDoubleIfPossible(properties.get("openslide.objective-power"));
+        return magnification;
+    }
+
+    @Override
+    public List<IRectangularArea> zeroLevelActualRectangles() {
+        if (!hasBounds()) {
+            return super.zeroLevelActualRectangles();
+        }
+        return Collections.singletonList(IRectangularArea.valueOf(
+            IPoint.valueOf(boundsX, boundsY),
+            IPoint.valueOf(boundsX + boundsWidth - 1, boundsY + boundsHeight - 1)));
+    }
+
+    @Override
+    public boolean isSpecialMatrixSupported(SpecialImageKind kind) {
+        return associatedImageName(kind) != null || super.isSpecialMatrixSupported(kind);
+    }
+
+    // Special images are taken from associated images of the slide (if they exist) and decoded only once:
+    // see OpenSlideAssociatedImageCache
+    @Override
+    public Matrix<? extends PArray> readSpecialMatrix(SpecialImageKind kind) throws NotYetConnectedException {
+        if (kind == null) {
+            throw new NullPointerException("Null image kind");
+        }
+        final String imageName = associatedImageName(kind);
+        if (imageName == null) {
+            return super.readSpecialMatrix(kind);
+        }
+        final OpenSlideAssociatedImageCache cache = OpenSlideAssociatedImageCache.getInstance();
+        final String compositing = compositing();
+        Matrix<? extends PArray> result = cache.get(slideId, imageName, compositing);
+        if (result == null) {
+            try {
+                result = readAssociatedImage(imageName);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+            cache.put(slideId, imageName, compositing, result);
+        }
+        return result;
     }
 
     public void loadResources() {
@@ -170,6 +342,40 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
         largeData.freeResources();
     }
 
+    public boolean isConcurrentReading() {
+        return concurrentReading;
+    }
+
+    // if true, the native reading is performed without global synchronization (libopenslide is thread-safe);
+    // if false, all reading operations are serialized by LargeDataHolder.lock, as in old versions
+    public void setConcurrentReading(boolean concurrentReading) {
+        this.concurrentReading = concurrentReading;
+    }
+
+    public int getMaxNumberOfOpenSlideHandles() {
+        return maxNumberOfOpenSlideHandles;
+    }
+
+    // values >1 enable a pool of OpenSlide objects, each used by one thread at a time:
+    // useful for formats, where the native decoder of the vendor serializes reading internally;
+    // 1 means that all threads share the single OpenSlide object; ignored if !concurrentReading
+    public void setMaxNumberOfOpenSlideHandles(int maxNumberOfOpenSlideHandles) {
+        if (maxNumberOfOpenSlideHandles <= 0) {
+            throw new IllegalArgumentException("Zero or negative maximal number of OpenSlide handles");
+        }
+        this.maxNumberOfOpenSlideHandles = maxNumberOfOpenSlideHandles;
+    }
+
+    public boolean isTileCaching() {
+        return tileCaching;
+    }
+
+    // if true, regions are assembled from native tiles, stored in the process-wide cache (OpenSlideTileCache),
+    // when the slide provides openslide.level[N].tile-width/height properties
+    public void setTileCaching(boolean tileCaching) {
+        this.tileCaching = tileCaching;
+    }
+
     @Override
     protected Matrix<? extends PArray> readLittleSubMatrix(
         int resolutionLevel, long fromX, long fromY, long toX, long toY)
@@ -177,96 +383,540 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
         checkSubMatrixRanges(resolutionLevel, fromX, fromY, toX, toY, true);
         final int sizeX = (int) (toX - fromX);
         final int sizeY = (int) (toY - fromY);
-        largeData.lock.lock();
-        try {
-            largeData.init();
-            int[] packedData = new int[sizeX * sizeY];
-            debug(2, "OpenSlide reading R%d: %d..%d x %d..%d%n",
+        debug(2, "OpenSlide reading R%d: %d..%d x %d..%d%n",
+            resolutionLevel, fromX, toX, fromY, toY);
+        if (isKnownBackground(resolutionLevel, fromX, fromY, sizeX, sizeY)) {
+            debug(2, "OpenSlide skips R%d: %d..%d x %d..%d (background)%n",
                 resolutionLevel, fromX, toX, fromY, toY);
-            for (int level = 0; level < resolutionLevel; level++) {
-                // paintRegionARGB needs coordinates in terms of the zero level
-                fromX *= compression;
-                fromY *= compression;
-            }
-            if (sizeX > 0 || sizeY > 0) { // to be on the safe side: not try to read zero-size frame
-                largeData.openSlide.paintRegionARGB(
-                    packedData, fromX, fromY, resolutionLevel, sizeX, sizeY);
-            }
-//            for (int k = 0; k < Math.min(sizeY, 20); k++) {
-//                System.out.printf("%d: %s%n", k,
-//                    JArrays.toString(JArrays.copyOfRange(packedData, k * sizeX, (k + 1) * sizeX),
-//                        java.util.Locale.US, "%x", ",", 5000));
-//            }
-            byte[] data = new byte[bandCount * sizeX * sizeY];
-            switch (bandCount) {
-                case 0:
-                    break; // to be on the safe side
-                case 1:
-                    for (int i = 0, disp = 0; i < packedData.length; i++, disp++) {
-                        data[disp] = (byte) packedData[i];
+            return backgroundMatrix(sizeX, sizeY);
+        }
+        try {
+            final int[] packedData = packedBuffer(sizeX * sizeY);
+            if (!hasBounds()) {
+                readPackedARGB(packedData, resolutionLevel, fromX, fromY, sizeX, sizeY);
+                return packedARGBToMatrix(packedData, sizeX, sizeY);
+            }
+            // reading only the scanned area: the rest is filled by transparent pixels, i.e. by the background
+            final long scale = zeroLevelScale(resolutionLevel);
+            final long x1 = Math.max(fromX, boundsX / scale);
+            final long y1 = Math.max(fromY, boundsY / scale);
+            final long x2 = Math.min(toX, (boundsX + boundsWidth + scale - 1) / scale);
+            final long y2 = Math.min(toY, (boundsY + boundsHeight + scale - 1) / scale);
+            if (x1 >= x2 || y1 >= y2) {
+                debug(2, "OpenSlide skips R%d: %d..%d x %d..%d (out of bounds)%n",
+                    resolutionLevel, fromX, toX, fromY, toY);
+                return backgroundMatrix(sizeX, sizeY);
+            }
+            if (x1 == fromX && y1 == fromY && x2 == toX && y2 == toY) {
+                readPackedARGB(packedData, resolutionLevel, fromX, fromY, sizeX, sizeY);
+                return packedARGBToMatrix(packedData, sizeX, sizeY);
+            }
+            final int innerSizeX = (int) (x2 - x1);
+            final int innerSizeY = (int) (y2 - y1);
+            final int left = (int) (x1 - fromX);
+            final int top = (int) (y1 - fromY);
+            readPackedARGB(packedData, resolutionLevel, x1, y1, innerSizeX, innerSizeY);
+            // moving the rows to their places in the same buffer, bottom-up: the destination of every row
+            // is not before its source, so the rows, which are not moved yet, are not damaged
+            for (int y = innerSizeY - 1; y >= 0; y--) {
+                final int rowOffset = (top + y) * sizeX;
+                System.arraycopy(packedData, y * innerSizeX, packedData, rowOffset + left, innerSizeX);
+                java.util.Arrays.fill(packedData, rowOffset, rowOffset + left, 0);
+                java.util.Arrays.fill(packedData, rowOffset + left + innerSizeX, rowOffset + sizeX, 0);
+            }
+            java.util.Arrays.fill(packedData, 0, top * sizeX, 0);
+            java.util.Arrays.fill(packedData, (top + innerSizeY) * sizeX, sizeX * sizeY, 0);
+            return packedARGBToMatrix(packedData, sizeX, sizeY);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+    // packedData may be longer than sizeX * sizeY
+    private void readPackedARGB(int[] packedData, int resolutionLevel, long fromX, long fromY, int sizeX, int sizeY)
+        throws IOException
+    {
+        if (!concurrentReading) {
+            largeData.lock.lock();
+            try {
+                largeData.init();
+                readPackedARGB(largeData.openSlide, packedData, resolutionLevel, fromX, fromY, sizeX, sizeY);
+                return;
+            } finally {
+                largeData.lock.unlock();
+            }
+        }
+        final int maxNumberOfHandles = this.maxNumberOfOpenSlideHandles;
+        for (int attempt = 1; ; attempt++) {
+            final OpenSlide openSlide = maxNumberOfHandles > 1 ?
+                largeData.borrowHandle(maxNumberOfHandles) :
+                largeData.sharedHandle();
+            try {
+                readPackedARGB(openSlide, packedData, resolutionLevel, fromX, fromY, sizeX, sizeY);
+                return;
+            } catch (OpenSlideDisposedException e) {
+                // freeResources() was called in another thread: the next attempt will reopen the slide
+                if (attempt >= 2) {
+                    throw e;
+                }
+                debug(1, "OpenSlide handle was disposed while reading %s; retrying%n", imageFile);
+            } finally {
+                if (maxNumberOfHandles > 1) {
+                    largeData.returnHandle(openSlide);
+                }
+            }
+        }
+    }
+
+    private void readPackedARGB(
+        OpenSlide openSlide, int[] packedData,
+        int resolutionLevel, long fromX, long fromY, int sizeX, int sizeY)
+        throws IOException
+    {
+        final int level = getOpenSlideLevel(resolutionLevel);
+        final double ratio = openSlideLevelRatios[resolutionLevel];
+        if (ratio == 1.0) {
+            readOpenSlideLevel(openSlide, packedData, level, fromX, fromY, sizeX, sizeY);
+        } else {
+            readResampled(openSlide, packedData, level, ratio, fromX, fromY, sizeX, sizeY);
+        }
+    }
+
+    // Coordinates are in terms of the OpenSlide level
+    private void readOpenSlideLevel(
+        OpenSlide openSlide, int[] packedData,
+        int level, long fromX, long fromY, int sizeX, int sizeY)
+        throws IOException
+    {
+        final int tileWidth = nativeTileWidths[level];
+        final int tileHeight = nativeTileHeights[level];
+        if (tileCaching && OpenSlideTileCache.getInstance().isEnabled()
+            && tileWidth > 0 && tileHeight > 0 && (long) tileWidth * (long) tileHeight <= MAX_CACHED_TILE_SIZE)
+        {
+            readPackedARGBByTiles(openSlide, packedData, level, fromX, fromY, sizeX, sizeY,
+                tileWidth, tileHeight);
+        } else {
+            readNativeRegion(openSlide, packedData, level, fromX, fromY, sizeX, sizeY);
+        }
+    }
+
+    private void readPackedARGBByTiles(
+        OpenSlide openSlide, int[] packedData,
+        int level, long fromX, long fromY, int sizeX, int sizeY,
+        int tileWidth, int tileHeight)
+        throws IOException
+    {
+        if (sizeX == 0 || sizeY == 0) {
+            return;
+        }
+        final OpenSlideTileCache cache = OpenSlideTileCache.getInstance();
+        final BitSet background = backgroundTiles[level];
+        final long tilesPerRow = (nativeDimX[level] + tileWidth - 1) / tileWidth;
+        final long toX = fromX + sizeX;
+        final long toY = fromY + sizeY;
+        for (long tileY = fromY / tileHeight; tileY * tileHeight < toY; tileY++) {
+            final long tileFromY = tileY * tileHeight;
+            final int tileSizeY = (int) Math.min(tileHeight, nativeDimY[level] - tileFromY);
+            for (long tileX = fromX / tileWidth; tileX * tileWidth < toX; tileX++) {
+                final long tileFromX = tileX * tileWidth;
+                final int tileSizeX = (int) Math.min(tileWidth, nativeDimX[level] - tileFromX);
+                final long x1 = Math.max(fromX, tileFromX);
+                final long x2 = Math.min(toX, tileFromX + tileSizeX);
+                final long y1 = Math.max(fromY, tileFromY);
+                final long y2 = Math.min(toY, tileFromY + tileSizeY);
+                final int length = (int) (x2 - x1);
+                final int tileIndex = (int) (tileY * tilesPerRow + tileX);
+                if (isBackgroundTile(background, tileIndex)) {
+                    for (long y = y1; y < y2; y++) {
+                        final int disp = (int) ((y - fromY) * sizeX + (x1 - fromX));
+                        java.util.Arrays.fill(packedData, disp, disp + length, 0);
+                        // - transparent pixels are always replaced with the background
                     }
-                    break;
-                case 2:
-                case 3:
-                    if (!useAlphaForBackground) {
-                        for (int i = 0, disp = 0; i < packedData.length; i++, disp += bandCount) {
-                            int v = packedData[i];
-                            data[disp] = (byte) (v >>> 16);
-                            data[disp + 1] = (byte) (v >>> 8);
-                            data[disp + 2] = (byte) v;
+                    continue;
+                }
+                final OpenSlideTileCache.Key key = new OpenSlideTileCache.Key(slideId, level, tileX, tileY);
+                int[] tile = cache.get(key);
+                if (tile == null) {
+                    tile = new int[tileSizeX * tileSizeY];
+                    readNativeRegion(openSlide, tile, level, tileFromX, tileFromY, tileSizeX, tileSizeY);
+                    if (background != null && isBackground(tile, tile.length)) {
+                        synchronized (background) {
+                            background.set(tileIndex);
                         }
+                        debug(3, "OpenSlide found background tile %d, %d at level %d%n", tileX, tileY, level);
                     } else {
-                        for (int y = 0, disp = 0, i = 0; y < sizeY; y++) {
-                            for (int x = 0; x < sizeX; x++, i++, disp += bandCount) {
-                                int v = packedData[i];
-                                int alpha = v >>> 24;
-                                if (alpha == 0) {
-                                    data[disp] = (byte) backgroundRed;
-                                    data[disp + 1] = (byte) backgroundGreen;
-                                    data[disp + 2] = (byte) backgroundBlue;
-                                    continue;
-                                }
-                                int r = (v >>> 16) & 0xFF;
-                                int g = (v >>> 8) & 0xFF;
-                                int b = v & 0xFF;
-                                if (alpha == 0xFF) {
-                                    data[disp] = (byte) r;
-                                    data[disp + 1] = (byte) g;
-                                    data[disp + 2] = (byte) b;
-                                    continue;
-                                }
-                                boolean enforceBackground = alpha < maxAlphaForEnforcingBackground;
-                                if (enforceBackground) {
-                                    data[disp] = (byte) backgroundRed;
-                                    data[disp + 1] = (byte) backgroundGreen;
-                                    data[disp + 2] = (byte) backgroundBlue;
-                                    continue;
-                                }
-                                data[disp] = (byte) (INV_255 * (r * alpha + backgroundRed * (255 - alpha)));
-                                data[disp + 1] = (byte) (INV_255 * (g * alpha + backgroundGreen * (255 - alpha)));
-                                data[disp + 2] = (byte) (INV_255 * (b * alpha + backgroundBlue * (255 - alpha)));
-                            }
-                        }
+                        cache.put(key, tile);
+                        debug(3, "OpenSlide decoded tile %s; %s%n", key, cache);
                     }
-                    break;
-                default:
-                    for (int i = 0, disp = 0; i < packedData.length; i++, disp += bandCount) {
+                }
+                for (long y = y1; y < y2; y++) {
+                    System.arraycopy(
+                        tile, (int) ((y - tileFromY) * tileSizeX + (x1 - tileFromX)),
+                        packedData, (int) ((y - fromY) * sizeX + (x1 - fromX)),
+                        length);
+                }
+            }
+        }
+    }
+
+    // Box averaging of premultiplied ARGB pixels of the finer OpenSlide level;
+    // ratio is the downsample of the resolution level relative to that OpenSlide level
+    private void readResampled(
+        OpenSlide openSlide, int[] packedData,
+        int level, double ratio, long fromX, long fromY, int sizeX, int sizeY)
+        throws IOException
+    {
+        java.util.Arrays.fill(packedData, 0, sizeX * sizeY, 0);
+        // - pixels without source (beyond the OpenSlide level) are transparent, i.e. background
+        final long levelFromX = (long) (fromX * ratio);
+        final long levelFromY = (long) (fromY * ratio);
+        final long levelToX = Math.min(nativeDimX[level], (long) Math.ceil((fromX + sizeX) * ratio));
+        final long levelToY = Math.min(nativeDimY[level], (long) Math.ceil((fromY + sizeY) * ratio));
+        if (levelFromX >= levelToX || levelFromY >= levelToY) {
+            return;
+        }
+        final int levelSizeX = (int) (levelToX - levelFromX);
+        final ResamplingBuffers buffers = RESAMPLING_BUFFERS.get();
+        final int[] targetX = buffers.targetX(levelSizeX);
+        for (int i = 0; i < levelSizeX; i++) {
+            targetX[i] = (int) Math.max(0, Math.min(sizeX - 1, (long) ((levelFromX + i) / ratio) - fromX));
+        }
+        final int stripSizeY = (int) Math.max(1, Math.min(levelToY - levelFromY,
+            MAX_RESAMPLED_STRIP_LENGTH / levelSizeX));
+        final int[] strip = buffers.strip(levelSizeX * stripSizeY);
+        final long[] sums = buffers.sums(4 * sizeX);
+        final int[] counts = buffers.counts(sizeX);
+        java.util.Arrays.fill(sums, 0, 4 * sizeX, 0);
+        java.util.Arrays.fill(counts, 0, sizeX, 0);
+        // - the buffers can be not cleared after an exception in the previous call
+        int currentY = -1;
+        for (long levelY = levelFromY; levelY < levelToY; levelY += stripSizeY) {
+            final int rows = (int) Math.min(stripSizeY, levelToY - levelY);
+            readOpenSlideLevel(openSlide, strip, level, levelFromX, levelY, levelSizeX, rows);
+            for (int j = 0; j < rows; j++) {
+                final int y = (int) Math.max(0, Math.min(sizeY - 1, (long) ((levelY + j) / ratio) - fromY));
+                if (y != currentY) {
+                    if (currentY >= 0) {
+                        storeAveragedRow(packedData, currentY * sizeX, sums, counts, sizeX);
+                    }
+                    currentY = y;
+                }
+                for (int i = 0, disp = j * levelSizeX; i < levelSizeX; i++, disp++) {
+                    final int v = strip[disp];
+                    final int x = targetX[i];
+                    sums[4 * x] += v >>> 24;
+                    sums[4 * x + 1] += (v >>> 16) & 0xFF;
+                    sums[4 * x + 2] += (v >>> 8) & 0xFF;
+                    sums[4 * x + 3] += v & 0xFF;
+                    counts[x]++;
+                }
+            }
+        }
+        storeAveragedRow(packedData, currentY * sizeX, sums, counts, sizeX);
+    }
+
+    // Stores the averages and clears the sums; sums and counts may be longer than necessary
+    private static void storeAveragedRow(int[] packedData, int offset, long[] sums, int[] counts, int sizeX) {
+        for (int x = 0; x < sizeX; x++) {
+            final int n = counts[x];
+            if (n > 0) {
+                final int a = (int) ((sums[4 * x] + n / 2) / n);
+                final int r = (int) ((sums[4 * x + 1] + n / 2) / n);
+                final int g = (int) ((sums[4 * x + 2] + n / 2) / n);
+                final int b = (int) ((sums[4 * x + 3] + n / 2) / n);
+                packedData[offset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+                sums[4 * x] = sums[4 * x + 1] = sums[4 * x + 2] = sums[4 * x + 3] = 0;
+                counts[x] = 0;
+            }
+        }
+    }
+
+    private void readNativeRegion(
+        OpenSlide openSlide, int[] packedData,
+        int level, long fromX, long fromY, int sizeX, int sizeY)
+        throws IOException
+    {
+        // paintRegionARGB needs coordinates in terms of the zero level; OpenSlide divides them back
+        // by the (maybe non-integer) level downsample and rounds down, so we must round up here
+        final double downsample = nativeDownsamples[level];
+        fromX = (long) Math.ceil(fromX * downsample);
+        fromY = (long) Math.ceil(fromY * downsample);
+        if (sizeX > 0 || sizeY > 0) { // to be on the safe side: not try to read zero-size frame
+            openSlide.paintRegionARGB(packedData, fromX, fromY, level, sizeX, sizeY);
+        }
+//        for (int k = 0; k < Math.min(sizeY, 20); k++) {
+//            System.out.printf("%d: %s%n", k,
+//                JArrays.toString(JArrays.copyOfRange(packedData, k * sizeX, (k + 1) * sizeX),
+//                    java.util.Locale.US, "%x", ",", 5000));
+//        }
+    }
+
+    // packedData may be longer than sizeX * sizeY: only first sizeX * sizeY elements are used
+    private Matrix<? extends PArray> packedARGBToMatrix(int[] packedData, int sizeX, int sizeY) {
+        final int length = sizeX * sizeY;
+        if (isBackground(packedData, length)) {
+            return backgroundMatrix(sizeX, sizeY);
+        }
+        byte[] data = new byte[bandCount * length];
+        switch (bandCount) {
+            case 0:
+                break; // to be on the safe side
+            case 1:
+                for (int i = 0, disp = 0; i < length; i++, disp++) {
+                    data[disp] = (byte) packedData[i];
+                }
+                break;
+            case 2:
+            case 3:
+                if (!useAlphaForBackground) {
+                    for (int i = 0, disp = 0; i < length; i++, disp += bandCount) {
                         int v = packedData[i];
                         data[disp] = (byte) (v >>> 16);
                         data[disp + 1] = (byte) (v >>> 8);
                         data[disp + 2] = (byte) v;
-                        data[disp + 3] = (byte) (v >>> 24);
                     }
-                    break;
+                } else {
+                    for (int y = 0, disp = 0, i = 0; y < sizeY; y++) {
+                        for (int x = 0; x < sizeX; x++, i++, disp += bandCount) {
+                            int v = packedData[i];
+                            int alpha = v >>> 24;
+                            if (alpha == 0) {
+                                data[disp] = (byte) backgroundRed;
+                                data[disp + 1] = (byte) backgroundGreen;
+                                data[disp + 2] = (byte) backgroundBlue;
+                                continue;
+                            }
+                            int r = (v >>> 16) & 0xFF;
+                            int g = (v >>> 8) & 0xFF;
+                            int b = v & 0xFF;
+                            if (alpha == 0xFF) {
+                                data[disp] = (byte) r;
+                                data[disp + 1] = (byte) g;
+                                data[disp + 2] = (byte) b;
+                                continue;
+                            }
+                            boolean enforceBackground = alpha < maxAlphaForEnforcingBackground;
+                            if (enforceBackground) {
+                                data[disp] = (byte) backgroundRed;
+                                data[disp + 1] = (byte) backgroundGreen;
+                                data[disp + 2] = (byte) backgroundBlue;
+                                continue;
+                            }
+                            data[disp] = (byte) (INV_255 * (r * alpha + backgroundRed * (255 - alpha)));
+                            data[disp + 1] = (byte) (INV_255 * (g * alpha + backgroundGreen * (255 - alpha)));
+                            data[disp + 2] = (byte) (INV_255 * (b * alpha + backgroundBlue * (255 - alpha)));
+                        }
+                    }
+                }
+                break;
+            default:
+                for (int i = 0, disp = 0; i < length; i++, disp += bandCount) {
+                    int v = packedData[i];
+                    data[disp] = (byte) (v >>> 16);
+                    data[disp + 1] = (byte) (v >>> 8);
+                    data[disp + 2] = (byte) v;
+                    data[disp + 3] = (byte) (v >>> 24);
+                }
+                break;
+        }
+        return Matrices.matrix(SimpleMemoryModel.asUpdatableByteArray(data), bandCount, sizeX, sizeY);
+    }
+
+    // Returns null if there is no suitable associated image
+    private String associatedImageName(SpecialImageKind kind) {
+        if (kind == null) {
+            return null;
+        }
+        final String result;
+        switch (kind) {
+            case WHOLE_SLIDE:
+                result = "macro";
+                break;
+            case LABEL_ONLY_IMAGE:
+                result = "label";
+                break;
+            case MAP_IMAGE:
+                result = "thumbnail";
+                break;
+            default:
+                return null;
+        }
+        return associatedImageNames.contains(result) ? result : null;
+    }
+
+    private Matrix<? extends PArray> readAssociatedImage(String imageName) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            final OpenSlide openSlide = largeData.sharedHandle();
+            try {
+                final BufferedImage image = openSlide.getAssociatedImages().get(imageName).toBufferedImage();
+                debug(1, "OpenSlide decoded associated image \"%s\" %dx%d of %s%n",
+                    imageName, image.getWidth(), image.getHeight(), imageFile);
+                final int[] packedData = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                final Matrix<? extends PArray> result =
+                    packedARGBToMatrix(packedData, image.getWidth(), image.getHeight());
+                return Matrices.matrix(result.array().asImmutable(), result.dimensions());
+            } catch (OpenSlideDisposedException e) {
+                if (attempt >= 2) {
+                    throw e;
+                }
             }
-            return Matrices.matrix(SimpleMemoryModel.asUpdatableByteArray(data), bandCount, sizeX, sizeY);
-        } catch (IOException e) {
-            throw new IOError(e);
-        } finally {
-            largeData.lock.unlock();
         }
     }
 
+    // Describes all settings, affecting packedARGBToMatrix: sources of the same slide with different
+    // background settings must not share cached associated images
+    private String compositing() {
+        return useAlphaForBackground ?
+            bandCount + " bands, background " + backgroundRed + "," + backgroundGreen + "," + backgroundBlue
+                + ", enforced if alpha<" + maxAlphaForEnforcingBackground :
+            bandCount + " bands, no background";
+    }
+
+    private boolean hasBounds() {
+        return boundsWidth > 0 && boundsHeight > 0;
+    }
+
+    // The ratio between the zero level and the given resolution level
+    private long zeroLevelScale(int resolutionLevel) {
+        long result = 1;
+        for (int level = 0; level < resolutionLevel; level++) {
+            result *= compression;
+        }
+        return result;
+    }
+
+    private boolean isKnownBackground(int resolutionLevel, long fromX, long fromY, int sizeX, int sizeY) {
+        final int level = getOpenSlideLevel(resolutionLevel);
+        final BitSet background = backgroundTiles[level];
+        if (background == null || !tileCaching || sizeX == 0 || sizeY == 0) {
+            return false;
+        }
+        final double ratio = openSlideLevelRatios[resolutionLevel];
+        long toX = fromX + sizeX;
+        long toY = fromY + sizeY;
+        if (ratio != 1.0) {
+            // the same area in terms of the OpenSlide level
+            toX = Math.min(nativeDimX[level], (long) Math.ceil(toX * ratio));
+            toY = Math.min(nativeDimY[level], (long) Math.ceil(toY * ratio));
+            fromX = (long) (fromX * ratio);
+            fromY = (long) (fromY * ratio);
+            if (fromX >= toX || fromY >= toY) {
+                return false;
+            }
+        }
+        final int tileWidth = nativeTileWidths[level];
+        final int tileHeight = nativeTileHeights[level];
+        final long tilesPerRow = (nativeDimX[level] + tileWidth - 1) / tileWidth;
+        synchronized (background) {
+            for (long tileY = fromY / tileHeight; tileY * tileHeight < toY; tileY++) {
+                for (long tileX = fromX / tileWidth; tileX * tileWidth < toX; tileX++) {
+                    if (!background.get((int) (tileY * tilesPerRow + tileX))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBackgroundTile(BitSet background, int tileIndex) {
+        if (background == null) {
+            return false;
+        }
+        synchronized (background) {
+            return background.get(tileIndex);
+        }
+    }
+
+    private boolean isBackground(int[] packedData, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!isBackground(packedData[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns true if this pixel will be replaced with the background color (black, if !useAlphaForBackground)
+    private boolean isBackground(int packedARGB) {
+        if (!useAlphaForBackground) {
+            return packedARGB == 0;
+        }
+        final int alpha = packedARGB >>> 24;
+        return alpha == 0 || alpha < maxAlphaForEnforcingBackground;
+    }
+
+    // Lazy constant matrix: no memory is allocated for background areas
+    private Matrix<? extends PArray> backgroundMatrix(long sizeX, long sizeY) {
+        if (!useAlphaForBackground || (backgroundRed == backgroundGreen && backgroundGreen == backgroundBlue)) {
+            return Matrices.constantMatrix(useAlphaForBackground ? backgroundRed : 0,
+                ByteArray.class, bandCount, sizeX, sizeY);
+        }
+        return Matrices.asCoordFuncMatrix(backgroundFunc, ByteArray.class, bandCount, sizeX, sizeY);
+    }
+
+    // Returns a reusable buffer, private for the current thread, containing at least the given number of elements.
+    // The content of the buffer is undefined; paintRegionARGB fills all first sizeX * sizeY elements.
+    // Per-thread working memory of readResampled; arrays may be longer than necessary
+    private static final class ResamplingBuffers {
+        private int[] targetX = new int[0];
+        private int[] strip = new int[0];
+        private long[] sums = new long[0];
+        private int[] counts = new int[0];
+
+        int[] targetX(int length) {
+            if (length > MAX_REUSED_PACKED_BUFFER_LENGTH) {
+                return new int[length];
+            }
+            if (targetX.length < length) {
+                targetX = new int[length];
+            }
+            return targetX;
+        }
+
+        int[] strip(int length) {
+            if (length > MAX_REUSED_PACKED_BUFFER_LENGTH) {
+                return new int[length];
+            }
+            if (strip.length < length) {
+                strip = new int[length];
+            }
+            return strip;
+        }
+
+        long[] sums(int length) {
+            if (length > MAX_REUSED_PACKED_BUFFER_LENGTH) {
+                return new long[length];
+            }
+            if (sums.length < length) {
+                sums = new long[length];
+            }
+            return sums;
+        }
+
+        int[] counts(int length) {
+            if (length > MAX_REUSED_PACKED_BUFFER_LENGTH) {
+                return new int[length];
+            }
+            if (counts.length < length) {
+                counts = new int[length];
+            }
+            return counts;
+        }
+    }
+
+    private static int[] packedBuffer(int length) {
+        if (length > MAX_REUSED_PACKED_BUFFER_LENGTH) {
+            return new int[length];
+        }
+        int[] result = PACKED_BUFFER.get();
+        if (result.length < length) {
+            result = new int[length];
+            PACKED_BUFFER.set(result);
+        }
+        return result;
+    }
+
     private static Double parseDoubleIfPossible(String s) {
         if (s == null) {
             return null;
@@ -278,8 +928,61 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
         }
     }
 
-    private static int getOpenSlideLevel(int resolutionLevel) {
-        return resolutionLevel; // no reasons to skip levels here
+    private int getOpenSlideLevel(int resolutionLevel) {
+        return openSlideLevels[resolutionLevel];
+    }
+
+    // The finest OpenSlide level, which is not coarser than the given downsample
+    private int bestOpenSlideLevel(double downsample) {
+        int result = 0;
+        for (int k = 1; k < nativeDownsamples.length; k++) {
+            if (nativeDownsamples[k] <= downsample * (1.0 + LEVEL_DOWNSAMPLE_TOLERANCE)) {
+                result = k;
+            }
+        }
+        return result;
+    }
+
+    // The compression, for which all OpenSlide levels are (almost) its powers, if possible;
+    // in other case, the ratio between first two levels
+    private static int chooseCompression(int bandCount, long[] dimX, long[] dimY, double[] downsamples) {
+        if (downsamples.length < 2) {
+            return PlanePyramidSource.DEFAULT_COMPRESSION;
+        }
+        final int detected = PlanePyramidTools.findCompression(
+            new long[] {bandCount, dimX[0], dimY[0]},
+            new long[] {bandCount, dimX[1], dimY[1]});
+        final int first = detected != 0 ? detected : (int) Math.round(downsamples[1]);
+        for (int compression : new int[] {first, PlanePyramidSource.DEFAULT_COMPRESSION}) {
+            if (compression >= 2 && areAllPowersOf(downsamples, compression)) {
+                return compression;
+            }
+        }
+        return first >= 2 ? first : PlanePyramidSource.DEFAULT_COMPRESSION;
+    }
+
+    private static boolean areAllPowersOf(double[] downsamples, int compression) {
+        for (double downsample : downsamples) {
+            final double power = Math.pow(compression,
+                Math.round(Math.log(downsample) / Math.log(compression)));
+            if (Math.abs(downsample / power - 1.0) > LEVEL_DOWNSAMPLE_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class BackgroundFunc extends AbstractFunc {
+        private final double[] bandValues;
+
+        private BackgroundFunc(double[] bandValues) {
+            this.bandValues = bandValues;
+        }
+
+        @Override
+        public double get(double... x) {
+            return bandValues[(int) x[0]];
+        }
     }
 
     // Important! PlanePyramidSource objects are often cloned, usually before every reading data,
@@ -290,16 +993,74 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
     // since that time, in this (disposed) state; so all clones will work normally, but very slowly:
     // the files will be reopened every time when PlanePyramid needs to read data and creates a clone for this.
     // LargeDataHolder class resolves all these problems, because the reference to it is shared among all clones.
+    // The lock protects only opening and closing OpenSlide objects: in the concurrent mode,
+    // reading is performed outside the lock (OpenSlide.paintRegionARGB is protected by its own read lock).
     private class LargeDataHolder {
         private volatile OpenSlide openSlide = null;
         private final Lock lock = new ReentrantLock();
+        private final Condition handleReturned = lock.newCondition();
+        private final Deque<OpenSlide> idleHandles = new ArrayDeque<>();
+        private final Set<OpenSlide> poolHandles = Collections.newSetFromMap(new IdentityHashMap<OpenSlide, Boolean>());
+        // - identity: OpenSlide.equals compares quickhash-1, so all handles of the same slide are "equal"
 
         private void init() throws IOException {
             lock.lock();
             try {
                 if (openSlide == null) {
-                        debug(1, "OpenSlide reinitializing %s%n", this);
+                    debug(1, "OpenSlide reinitializing %s%n", this);
                     openSlide = new OpenSlide(imageFile);
+                    debug(1, "OpenSlide opened %s: %s%n", imageFile, openSlide.getOpeningTimeInfo());
+                    poolHandles.add(openSlide);
+                    idleHandles.push(openSlide);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private OpenSlide sharedHandle() throws IOException {
+            final OpenSlide result = openSlide;
+            if (result != null) {
+                return result;
+            }
+            lock.lock();
+            try {
+                init();
+                return openSlide;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private OpenSlide borrowHandle(int maxNumberOfHandles) throws IOException {
+            lock.lock();
+            try {
+                init();
+                while (idleHandles.isEmpty() && poolHandles.size() >= maxNumberOfHandles) {
+                    handleReturned.awaitUninterruptibly();
+                    init(); // freeResources() could be called while waiting
+                }
+                if (!idleHandles.isEmpty()) {
+                    return idleHandles.pop();
+                }
+                debug(1, "OpenSlide opens additional handle #%d for %s%n", poolHandles.size(), imageFile);
+                final OpenSlide result = new OpenSlide(imageFile);
+                poolHandles.add(result);
+                return result;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void returnHandle(OpenSlide handle) {
+            lock.lock();
+            try {
+                if (poolHandles.contains(handle)) {
+                    idleHandles.push(handle);
+                    handleReturned.signal();
+                } else {
+                    // freeResources() was called while this handle was borrowed
+                    handle.dispose();
                 }
             } finally {
                 lock.unlock();
@@ -310,9 +1071,16 @@ public final class OpenSlidePlanePyramidSource extends AbstractPlanePyramidSourc
             lock.lock();
             try {
                 if (openSlide != null) {
-                    debug(1, "OpenSlide disposing %s%n", this);
+                    debug(1, "OpenSlide disposing %s (%d handles)%n", this, poolHandles.size());
                     openSlide.dispose();
+                    // - waits for reading operations in other threads, that use this handle now
+                    for (OpenSlide handle : idleHandles) {
+                        handle.dispose();
+                    }
+                    idleHandles.clear();
+                    poolHandles.clear();
                     openSlide = null;
+                    handleReturned.signalAll();
                 }
             } finally {
                 lock.unlock();
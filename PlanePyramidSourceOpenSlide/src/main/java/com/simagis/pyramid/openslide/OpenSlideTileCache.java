@@ -0,0 +1,66 @@
+package com.simagis.pyramid.openslide;
+
+import com.simagis.pyramid.common.MemoryLimitedLruCache;
+
+// Process-wide LRU cache of decoded native OpenSlide tiles (packed ARGB), shared by all sources in this JVM.
+// The total size of cached tiles is limited by the system property
+// "com.simagis.pyramid.openslide.tileCacheMemory" (in bytes, 128 MB by default; 0 disables caching).
+final class OpenSlideTileCache extends MemoryLimitedLruCache<OpenSlideTileCache.Key, int[]> {
+    private static final OpenSlideTileCache INSTANCE = new OpenSlideTileCache(
+        maxMemory("com.simagis.pyramid.openslide.tileCacheMemory", 128L * 1024L * 1024L));
+
+    private OpenSlideTileCache(long maxMemory) {
+        super("OpenSlide tile cache", maxMemory);
+    }
+
+    public static OpenSlideTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    protected long memory(int[] tile) {
+        return 4L * tile.length;
+    }
+
+    static final class Key {
+        private final String slideId;
+        private final int level;
+        private final long tileX;
+        private final long tileY;
+
+        // slideId should be quickhash-1 of the slide (or another unique identifier, if there is no quickhash)
+        Key(String slideId, int level, long tileX, long tileY) {
+            assert slideId != null;
+            this.slideId = slideId;
+            this.level = level;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return level == key.level && tileX == key.tileX && tileY == key.tileY && slideId.equals(key.slideId);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = slideId.hashCode();
+            result = 31 * result + level;
+            result = 31 * result + (int) (tileX ^ (tileX >>> 32));
+            result = 31 * result + (int) (tileY ^ (tileY >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return slideId + ", level " + level + ", tile (" + tileX + ", " + tileY + ")";
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.simagis.pyramid.openslide.OpenSlidePlanePyramidSource;
 import net.algart.simagis.live.json.minimal.SimagisLiveUtils;
 import net.algart.simagis.pyramid.PlanePyramidSource;
 import net.algart.simagis.pyramid.PlanePyramidSourceFactory;
+import org.json.JSONObject;
 
 import java.awt.*;
 import java.io.File;
@@ -17,12 +18,19 @@ public class OpenSlidePlanePyramidSourceFactory implements PlanePyramidSourceFac
         String renderingConfiguration)
         throws IOException
     {
+        final JSONObject pyramidJson = SimagisLiveUtils.configurationStringToJson(pyramidConfiguration);
+        final JSONObject openSlideJson = SimagisLiveUtils.openObject(pyramidJson, "format", "openslide");
         final OpenSlidePlanePyramidSource result = new OpenSlidePlanePyramidSource(
             null,
             new File(pyramidPath),
             Color.WHITE,
             4096,
             0.99);
+        result.setConcurrentReading(openSlideJson.optBoolean("concurrentReading",
+            result.isConcurrentReading()));
+        result.setMaxNumberOfOpenSlideHandles(openSlideJson.optInt("maxNumberOfOpenSlideHandles",
+            result.getMaxNumberOfOpenSlideHandles()));
+        result.setTileCaching(openSlideJson.optBoolean("tileCaching", result.isTileCaching()));
         SimagisLiveUtils.standardCustomizePlanePyramidSourceRendering(result, renderingConfiguration);
         return result;
     }